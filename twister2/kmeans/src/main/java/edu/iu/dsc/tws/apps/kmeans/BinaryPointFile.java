@@ -0,0 +1,318 @@
+package edu.iu.dsc.tws.apps.kmeans;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * A binary file of points, so the points are read by mapping the file instead of parsing text.
+ * The file has a header of HEADER_SIZE bytes followed by the points in row major order, each
+ * value a little endian double. The header holds the magic number, the version, the number of
+ * points and the dimension. A reader maps only its slice of the points and copies it straight
+ * in to a flat array.
+ */
+public final class BinaryPointFile {
+    private static final Logger LOG = Logger.getLogger(BinaryPointFile.class.getName());
+
+    public static final int MAGIC = 0x4B4D5054;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    // the largest part of a file mapped at once, a multiple of the size of a double
+    private static final long MAP_CHUNK = 1L << 30;
+    // size of the buffer used to write the points
+    private static final int WRITE_BUFFER = 1 << 20;
+
+    private BinaryPointFile() {
+    }
+
+    /**
+     * The number of points and the dimension of a file
+     */
+    public static class Header {
+        private long points;
+        private int dimension;
+
+        public Header(long points, int dimension) {
+            this.points = points;
+            this.dimension = dimension;
+        }
+
+        public long getPoints() {
+            return points;
+        }
+
+        public int getDimension() {
+            return dimension;
+        }
+    }
+
+    /**
+     * Check if the file starts with the magic number of a binary point file
+     */
+    public static boolean isBinary(String fileName) {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            return file.length() >= HEADER_SIZE && readHeader(file.getChannel()) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static Header readHeader(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            Header header = readHeader(file.getChannel());
+            if (header == null) {
+                throw new IOException("Not a binary point file: " + fileName);
+            }
+            return header;
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary point file version: " + version);
+        }
+        long points = buffer.getLong();
+        int dimension = buffer.getInt();
+        return new Header(points, dimension);
+    }
+
+    /**
+     * Read count points starting from the point at from
+     *
+     * @param into the array to read in to, it is allocated if it is null or too small
+     * @return the points in row major order
+     */
+    public static double[] read(String fileName, long from, int count, int dimension,
+                                double[] into) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            FileChannel channel = file.getChannel();
+            checkRange(channel, fileName, from, count, dimension);
+            long total = (long) count * dimension;
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException(count + " points of dimension " + dimension
+                        + " are more values than an array can hold");
+            }
+            int values = (int) total;
+            if (into == null || into.length < values) {
+                into = new double[values];
+            }
+            long position = HEADER_SIZE + from * dimension * Double.BYTES;
+            int read = 0;
+            while (read < values) {
+                long size = Math.min(MAP_CHUNK, (long) (values - read) * Double.BYTES);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                int chunk = (int) (size / Double.BYTES);
+                map.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(into, read, chunk);
+                read += chunk;
+                position += size;
+            }
+            return into;
+        }
+    }
+
+    /**
+     * Read count points starting from the point at from in to one array for each point. The
+     * rows are filled straight from each mapped chunk of the file, without a flat copy.
+     */
+    public static double[][] readRows(String fileName, long from, int count,
+                                      int dimension) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            FileChannel channel = file.getChannel();
+            checkRange(channel, fileName, from, count, dimension);
+            double[][] rows = new double[count][dimension];
+            long rowBytes = (long) dimension * Double.BYTES;
+            // the chunks hold whole rows, so a row is never split between two of them
+            long chunkRows = Math.max(1, MAP_CHUNK / rowBytes);
+            long position = HEADER_SIZE + from * rowBytes;
+            int read = 0;
+            while (read < count) {
+                int chunk = (int) Math.min(chunkRows, count - read);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        chunk * rowBytes);
+                DoubleBuffer values = map.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                for (int i = 0; i < chunk; i++) {
+                    values.get(rows[read + i], 0, dimension);
+                }
+                read += chunk;
+                position += chunk * rowBytes;
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Check the file holds the points from from up to from + count with the given dimension
+     */
+    private static Header checkRange(FileChannel channel, String fileName, long from, long count,
+                                     int dimension) throws IOException {
+        Header header = readHeader(channel);
+        if (header == null) {
+            throw new IOException("Not a binary point file: " + fileName);
+        }
+        if (header.getDimension() != dimension) {
+            throw new IOException("Dimension of " + fileName + " is "
+                    + header.getDimension() + " not " + dimension);
+        }
+        if (from < 0 || from + count > header.getPoints()) {
+            throw new IOException("Points " + from + " to " + (from + count)
+                    + " are not in " + fileName + " with " + header.getPoints() + " points");
+        }
+        return header;
+    }
+
+    /**
+     * Read the points of the tasks of a process, the points of the file are divided equally
+     * among all the tasks. An alternative to PointReader.readPoints for binary files.
+     *
+     * @return the points of each task of the process in row major order
+     */
+    public static double[][] readPoints(String fileName, int noOfPoints, int noOfProcs,
+                                        int procIndex, int taskPerProc,
+                                        int dimension) throws IOException {
+        int pointsPerTask = noOfPoints / (taskPerProc * noOfProcs);
+        long offset = (long) pointsPerTask * taskPerProc * procIndex;
+        double[][] doubles = new double[taskPerProc][];
+        for (int i = 0; i < taskPerProc; i++) {
+            doubles[i] = read(fileName, offset + (long) i * pointsPerTask, pointsPerTask,
+                    dimension, null);
+        }
+        return doubles;
+    }
+
+    /**
+     * Read the first clusters points of the file. An alternative to PointReader.readClusters
+     * for binary files.
+     */
+    public static double[] readClusters(String fileName, int dimension,
+                                        int clusters) throws IOException {
+        return read(fileName, 0, clusters, dimension, null);
+    }
+
+    /**
+     * Read all the points of the file in to one array for each point
+     */
+    public static double[][] readDataPoints(String fileName, int dimension) throws IOException {
+        Header header = readHeader(fileName);
+        if (header.getPoints() > Integer.MAX_VALUE) {
+            throw new IOException(fileName + " has " + header.getPoints()
+                    + " points, more than an array can hold");
+        }
+        return readRows(fileName, 0, (int) header.getPoints(), dimension);
+    }
+
+    /**
+     * Write the points to a binary file
+     *
+     * @param points the points in row major order
+     */
+    public static void write(String fileName, double[] points, int dimension) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_SIZE);
+            for (double value : points) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                buffer.putDouble(value);
+            }
+            flush(channel, buffer);
+            writeHeader(channel, points.length / dimension, dimension);
+        }
+    }
+
+    /**
+     * Convert a file of comma separated points, like the ones of KMeansDataGenerator, to a
+     * binary file. The text is read a line at a time, so the file may be larger than the memory.
+     *
+     * @return number of points converted
+     */
+    public static long convert(String csvFileName, String binaryFileName,
+                               int dimension) throws IOException {
+        long points = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName));
+             RandomAccessFile file = new RandomAccessFile(binaryFileName, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] split = line.split(",");
+                if (split.length != dimension) {
+                    throw new IOException("Invalid line " + (points + 1) + " with length: "
+                            + split.length);
+                }
+                if (buffer.remaining() < dimension * Double.BYTES) {
+                    flush(channel, buffer);
+                }
+                for (int i = 0; i < dimension; i++) {
+                    buffer.putDouble(Double.parseDouble(split[i].trim()));
+                }
+                points++;
+            }
+            flush(channel, buffer);
+            writeHeader(channel, points, dimension);
+        }
+        return points;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeHeader(FileChannel channel, long points,
+                                    int dimension) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(points).putInt(dimension);
+        header.clear();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /**
+     * Convert a csv file of points to a binary file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: BinaryPointFile <csv file> <binary file> <dimension>");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long points = convert(args[0], args[1], Integer.parseInt(args[2]));
+        LOG.info(String.format(Locale.ROOT, "Converted %d points of %s to %s in %d ms", points, args[0],
+                args[1], System.currentTimeMillis() - start));
+    }
+}
@@ -0,0 +1,175 @@
+package edu.iu.dsc.tws.apps.kmeans;
+
+import java.util.Arrays;
+
+/**
+ * Assigns points to their nearest centers across iterations, skipping the points whose center
+ * can not change as in Hamerly's algorithm. Each point keeps an upper bound of the distance to
+ * its center and a lower bound of the distance to any other center. When the centers move the
+ * bounds are loosened by how far they moved, and the distances of a point are only computed if
+ * its upper bound is larger than the lower bound or half the distance from its center to the
+ * nearest other center.
+ */
+public class BoundedAssigner {
+    private double[] points;
+    private int from;
+    private int to;
+    private int dimension;
+
+    // center of each point
+    private int[] assignment;
+    // bound of the distance from each point to its center
+    private double[] upper;
+    // bound of the distance from each point to the nearest center other than its own
+    private double[] lower;
+    // the centers of the previous iteration
+    private double[] previous;
+    // distance each center moved from the previous iteration
+    private double[] drift;
+    // half the distance from each center to the nearest other center
+    private double[] separation;
+    private double[] norms;
+    private int k;
+    // number of point to center distances computed in the last iteration
+    private long distances;
+
+    /**
+     * @param points row major points
+     * @param from index of the first point assigned by this
+     * @param to index after the last point assigned by this
+     * @param dimension values in a point
+     */
+    public BoundedAssigner(double[] points, int from, int to, int dimension) {
+        this.points = points;
+        this.from = from;
+        this.to = to;
+        this.dimension = dimension;
+        this.assignment = new int[to - from];
+        this.upper = new double[to - from];
+        this.lower = new double[to - from];
+    }
+
+    /**
+     * Assign the points to the nearest of the given centers
+     *
+     * @param centers row major centers
+     * @param numberOfCenters number of centers
+     * @return the center of each point, indexed from 0 for the first point
+     */
+    public int[] assign(double[] centers, int numberOfCenters) {
+        int count = to - from;
+        if (previous == null || k != numberOfCenters) {
+            initialize(centers, numberOfCenters);
+            return assignment;
+        }
+
+        distances = 0;
+        // loosen the bounds by the drift of the centers
+        int farthest = 0;
+        double maxDrift = 0;
+        double secondDrift = 0;
+        for (int c = 0; c < k; c++) {
+            drift[c] = Math.sqrt(DistanceKernel.squaredDistance(previous, c * dimension, centers,
+                    c * dimension, dimension));
+            if (drift[c] > maxDrift) {
+                secondDrift = maxDrift;
+                maxDrift = drift[c];
+                farthest = c;
+            } else if (drift[c] > secondDrift) {
+                secondDrift = drift[c];
+            }
+        }
+        separate(centers);
+
+        for (int i = 0; i < count; i++) {
+            int a = assignment[i];
+            upper[i] += drift[a];
+            lower[i] -= a == farthest ? secondDrift : maxDrift;
+            double bound = Math.max(separation[a], lower[i]);
+            if (upper[i] <= bound) {
+                continue;
+            }
+            // tighten the upper bound and check again
+            int po = (from + i) * dimension;
+            upper[i] = Math.sqrt(DistanceKernel.squaredDistance(points, po, centers,
+                    a * dimension, dimension));
+            distances++;
+            if (upper[i] <= bound) {
+                continue;
+            }
+            search(i, centers);
+        }
+        System.arraycopy(centers, 0, previous, 0, k * dimension);
+        return assignment;
+    }
+
+    /**
+     * @return number of point to center distances computed in the last iteration
+     */
+    public long getDistances() {
+        return distances;
+    }
+
+    /**
+     * Assign all the points with the distance kernel and start the bounds
+     */
+    private void initialize(double[] centers, int numberOfCenters) {
+        int count = to - from;
+        k = numberOfCenters;
+        norms = DistanceKernel.squaredNorms(centers, k, dimension, norms);
+        DistanceKernel.nearest(points, from, to, centers, norms, k, dimension, assignment, upper);
+        for (int i = 0; i < count; i++) {
+            // the exact distance, the expansion of the kernel may be off by rounding
+            upper[i] = Math.sqrt(DistanceKernel.squaredDistance(points, (from + i) * dimension,
+                    centers, assignment[i] * dimension, dimension));
+        }
+        Arrays.fill(lower, 0);
+        previous = Arrays.copyOf(centers, k * dimension);
+        drift = new double[k];
+        separation = new double[k];
+        distances = (long) count * (k + 1);
+    }
+
+    /**
+     * Compare the point with all the centers to find its center and the bounds
+     */
+    private void search(int i, double[] centers) {
+        int po = (from + i) * dimension;
+        double best = Double.MAX_VALUE;
+        double second = Double.MAX_VALUE;
+        int bestCenter = assignment[i];
+        for (int c = 0; c < k; c++) {
+            double d = DistanceKernel.squaredDistance(points, po, centers, c * dimension,
+                    dimension);
+            if (d < best) {
+                second = best;
+                best = d;
+                bestCenter = c;
+            } else if (d < second) {
+                second = d;
+            }
+        }
+        distances += k;
+        assignment[i] = bestCenter;
+        upper[i] = Math.sqrt(best);
+        lower[i] = Math.sqrt(second);
+    }
+
+    /**
+     * Calculate half the distance from each center to the nearest other center
+     */
+    private void separate(double[] centers) {
+        Arrays.fill(separation, Double.MAX_VALUE);
+        for (int c = 0; c < k; c++) {
+            for (int o = c + 1; o < k; o++) {
+                double d = DistanceKernel.squaredDistance(centers, c * dimension, centers,
+                        o * dimension, dimension);
+                separation[c] = Math.min(separation[c], d);
+                separation[o] = Math.min(separation[o], d);
+            }
+        }
+        for (int c = 0; c < k; c++) {
+            separation[c] = Math.sqrt(separation[c]) / 2;
+        }
+    }
+}
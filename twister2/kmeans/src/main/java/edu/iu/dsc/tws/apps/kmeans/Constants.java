@@ -21,4 +21,5 @@ public class Constants {
   public static final String ARGS_DIMENSIONS = "dim";
   public static final String ARGS_K = "clusters";
   public static final String ARGS_N_POINTS = "points";
+  public static final String ARGS_PRUNE = "prune";
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package edu.iu.dsc.tws.apps.kmeans;
+
+/**
+ * Nearest center search over flat row major blocks of points and centers. The squared distance
+ * is expanded as ||x||^2 - 2x.c + ||c||^2 with the norms of the centers computed once per
+ * iteration, so the inner loop is a plain dot product. The points and centers are visited in
+ * tiles, a tile of centers stays in the cache while a tile of points is compared with it, and
+ * a point is compared with four centers at once so each of its values is loaded once for them.
+ */
+public final class DistanceKernel {
+    // size of the centers of a tile, about the size of the L1 cache
+    private static final int CENTER_TILE_BYTES = 16 * 1024;
+    // points in a tile
+    private static final int POINT_TILE = 64;
+
+    private DistanceKernel() {
+    }
+
+    /**
+     * Calculate the squared norm of each row
+     *
+     * @param rows row major values
+     * @param count number of rows
+     * @param dimension values in a row
+     * @param norms the norms are written here, it is allocated if null or too small
+     * @return the norms
+     */
+    public static double[] squaredNorms(double[] rows, int count, int dimension, double[] norms) {
+        if (norms == null || norms.length < count) {
+            norms = new double[count];
+        }
+        for (int r = 0; r < count; r++) {
+            norms[r] = dot(rows, r * dimension, rows, r * dimension, dimension);
+        }
+        return norms;
+    }
+
+    /**
+     * Find the nearest center of the points from index from up to index to. The outputs are
+     * indexed from 0 for the point at from.
+     *
+     * @param points row major points
+     * @param centers row major centers
+     * @param centerNorms squared norms of the centers
+     * @param k number of centers
+     * @param dimension values in a point
+     * @param nearest index of the nearest center of each point
+     * @param distances squared distance from each point to its nearest center
+     */
+    public static void nearest(double[] points, int from, int to, double[] centers,
+                               double[] centerNorms, int k, int dimension, int[] nearest,
+                               double[] distances) {
+        // a multiple of 4 so the groups of centers do not cross the tiles
+        int centerTile = Math.max(4, CENTER_TILE_BYTES / (8 * dimension)) & ~3;
+        for (int p0 = from; p0 < to; p0 += POINT_TILE) {
+            int p1 = Math.min(to, p0 + POINT_TILE);
+            for (int p = p0; p < p1; p++) {
+                nearest[p - from] = 0;
+                distances[p - from] = Double.MAX_VALUE;
+            }
+            for (int c0 = 0; c0 < k; c0 += centerTile) {
+                int c1 = Math.min(k, c0 + centerTile);
+                for (int p = p0; p < p1; p++) {
+                    int po = p * dimension;
+                    // ||c||^2 - 2x.c, the norm of the point does not change the nearest center
+                    double best = distances[p - from];
+                    int bestCenter = nearest[p - from];
+                    int c = c0;
+                    for (; c + 3 < c1; c += 4) {
+                        int o0 = c * dimension;
+                        int o1 = o0 + dimension;
+                        int o2 = o1 + dimension;
+                        int o3 = o2 + dimension;
+                        double d0 = 0;
+                        double d1 = 0;
+                        double d2 = 0;
+                        double d3 = 0;
+                        for (int i = 0; i < dimension; i++) {
+                            double x = points[po + i];
+                            d0 += x * centers[o0 + i];
+                            d1 += x * centers[o1 + i];
+                            d2 += x * centers[o2 + i];
+                            d3 += x * centers[o3 + i];
+                        }
+                        double s0 = centerNorms[c] - 2 * d0;
+                        double s1 = centerNorms[c + 1] - 2 * d1;
+                        double s2 = centerNorms[c + 2] - 2 * d2;
+                        double s3 = centerNorms[c + 3] - 2 * d3;
+                        if (s0 < best) {
+                            best = s0;
+                            bestCenter = c;
+                        }
+                        if (s1 < best) {
+                            best = s1;
+                            bestCenter = c + 1;
+                        }
+                        if (s2 < best) {
+                            best = s2;
+                            bestCenter = c + 2;
+                        }
+                        if (s3 < best) {
+                            best = s3;
+                            bestCenter = c + 3;
+                        }
+                    }
+                    for (; c < c1; c++) {
+                        double s = centerNorms[c] - 2 * dot(points, po, centers, c * dimension,
+                                dimension);
+                        if (s < best) {
+                            best = s;
+                            bestCenter = c;
+                        }
+                    }
+                    distances[p - from] = best;
+                    nearest[p - from] = bestCenter;
+                }
+            }
+            for (int p = p0; p < p1; p++) {
+                int po = p * dimension;
+                // rounding may make the distance of a point on a center slightly negative
+                distances[p - from] = Math.max(0,
+                        distances[p - from] + dot(points, po, points, po, dimension));
+            }
+        }
+    }
+
+    /**
+     * Squared distance between the rows of a and b at the given offsets
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset,
+                                         int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static double dot(double[] a, int aOffset, double[] b, int bOffset, int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+}
@@ -123,6 +123,7 @@ public class KMeans implements IWorker {
         int workerTask = workerTasksOfExecutor.get(k);
 
         sourcesToReceiveMapping.put(sourceTask, workerTask);
+        workerMessageQueue.put(workerTask, new ArrayBlockingQueue<>(1));
       }
 
       for (int k = 0; k < sourceTasksOfExecutor.size(); k++) {
@@ -130,11 +131,12 @@ public class KMeans implements IWorker {
 
         PipelinedTask source = new PipelinedTask(points[k], centers, sourceTasksOfExecutor.get(k),
                 jobParameters.getDimension(), jobParameters.getIterations(), pointsPerTask);
+        source.setPrune(jobParameters.isPrune());
         partitionSources.put(sourceTask, source);
       }
 
       allReduce = new BAllReduce(communicator, taskPlan, sources, dests, new ReduceOperationFunction(Op.SUM, MessageType.DOUBLE), new FinalSingularReceiver(),
-              MessageType.INTEGER);
+              MessageType.DOUBLE);
 
 
       for (int k = 0; k < sourceTasksOfExecutor.size(); k++) {
@@ -265,11 +267,24 @@ public class KMeans implements IWorker {
       public void init(Config cfg, Set<Integer> expectedIds) {
       }
 
+      /**
+       * Hand the reduced sums to the task waiting for them, they are only read by it. A task
+       * takes the result of an iteration before it starts the next one, so the queue is empty
+       * here and put does not wait.
+       */
       @Override
       public boolean receive(int target, Object object) {
-
-
-        return true;
+        BlockingQueue<Message> queue = workerMessageQueue.get(target);
+        if (queue == null) {
+          throw new RuntimeException("No task to receive the sums of target " + target);
+        }
+        try {
+          queue.put(new Message(target, 0, object));
+          return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
       }
     }
 
@@ -283,11 +298,11 @@ public class KMeans implements IWorker {
       public Object reduce(Object t1, Object t2) {
         double[] data1 = (double[]) t1;
         double[] data2 = (double[]) t2;
-        double[] data3 = new double[data1.length];
+        // the partial sums are accumulated in to the first array
         for (int i = 0; i < data1.length; i++) {
-          data3[i] = data1[i] + data2[i];
+          data1[i] += data2[i];
         }
-        return data3;
+        return data1;
       }
     }
 
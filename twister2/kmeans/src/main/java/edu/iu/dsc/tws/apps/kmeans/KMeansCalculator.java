@@ -7,74 +7,134 @@ public class KMeansCalculator {
     private static final Logger LOG = Logger.getLogger(KMeansCalculator.class.getName());
 
     private double[][] points;
-    private double[][] centerSums;
+    // the sums of the points of each centroid followed by their count, dimension + 1 values
+    // a centroid, so they are reduced as one array
+    private double[] centerSums;
     private double[][] centroids;
 
-    private int[] centerCounts;
-
     private int taskId;
     private int dimension;
 
     private int startIndex;
     private int endIndex;
 
+    // the points from start index to end index, row major
+    private double[] pointBlock;
+    private double[] centerBlock;
+    private double[] centerNorms;
+    // nearest center of each point and the squared distance to it
+    private int[] nearest;
+    private double[] distances;
+    // keeps the distance bounds of the points across iterations if pruning is enabled
+    private BoundedAssigner assigner;
+    private boolean prune;
+
     public KMeansCalculator(double[][] points, double[][] centres, int taskId, int dim,
                             int sIndex, int eIndex) {
         this.points = points;
         this.centroids = centres;
         this.taskId = taskId;
         this.dimension = dim;
-        this.centerSums = new double[this.centroids.length][this.centroids[0].length + 1];
-        this.centerCounts = new int[this.centroids.length];
+        this.centerSums = new double[this.centroids.length * (dim + 1)];
         this.startIndex = sIndex;
         this.endIndex = eIndex;
     }
 
+    /**
+     * Skip the points whose nearest centroid can not have changed since the previous iteration.
+     * The calculator has to be reused across the iterations with setCentroids for this.
+     */
+    public void setPrune(boolean prune) {
+        this.prune = prune;
+    }
+
+    /**
+     * Set the centroids of the next iteration and clear the sums, the sums of the previous
+     * iteration must not be in use anymore
+     */
+    public void setCentroids(double[][] centres) {
+        if (centres.length * (dimension + 1) != centerSums.length) {
+            throw new RuntimeException("Number of centroids changed " + centres.length);
+        }
+        this.centroids = centres;
+        Arrays.fill(centerSums, 0);
+    }
+
     /**
      * This method invokes the findnearestcenter method to find the datapoints closer to the centroid
-     * values. The calculated value is assigned to the KMeansCenters object and return the same.
+     * values and returns the sums and counts of the points of each centroid.
      */
-    public KMeansCenters calculate() {
-        findNearestCenter(dimension, points, centroids);
-        KMeansCenters kMeansCenters = new KMeansCenters(centerSums);
-        return kMeansCenters;
+    public double[] calculate() {
+        return findNearestCenter(dimension, points, centroids);
     }
 
     /**
-     * This method first invoke the euclidean distance between to calculate the distance between the
-     * data points assigned to the task (i.e from start index to end index) and the centroid values.
+     * This method finds the nearest centroid of the data points assigned to the task (i.e from
+     * start index to end index) with the tiled distance kernel over row major blocks.
      * The calculated centroid values and the number of data points closer to the particular centroid
      * values assigned to the centerSums array object.
      */
-    public double[][] findNearestCenter(int dim, double[][] datapoints,
-                                        double[][] centers) {
+    public double[] findNearestCenter(int dim, double[][] datapoints,
+                                      double[][] centers) {
         LOG.fine("Start index:" + startIndex + "\tend index:" + endIndex);
-        for (int i = startIndex; i < endIndex; i++) {
-            int minimumCentroid = 0;
-            double minValue = 0;
-            double distance;
+        int count = endIndex - startIndex;
+        double[] block;
+        if (datapoints == points) {
+            if (pointBlock == null) {
+                pointBlock = flatten(points, startIndex, endIndex, dim, null);
+            }
+            block = pointBlock;
+        } else {
+            block = flatten(datapoints, startIndex, endIndex, dim, null);
+        }
+        centerBlock = flatten(centers, 0, centers.length, dim, centerBlock);
 
-            //Calculate the distance between the datapoints and the centroids
-            for (int j = 0; j < centers.length; j++) {
-                distance = calculateEuclideanDistance(datapoints[i], centers[j], dim);
-                if (j == 0) {
-                    minValue = distance;
-                }
-                if (distance < minValue) {
-                    minValue = distance;
-                    minimumCentroid = j;
-                }
+        //Calculate the distance between the datapoints and the centroids
+        int[] assignment;
+        if (prune && block == pointBlock) {
+            if (assigner == null) {
+                assigner = new BoundedAssigner(block, 0, count, dim);
             }
-            //Accumulate the values
+            assignment = assigner.assign(centerBlock, centers.length);
+            LOG.fine("Task " + taskId + " distances computed:" + assigner.getDistances());
+        } else {
+            centerNorms = DistanceKernel.squaredNorms(centerBlock, centers.length, dim,
+                    centerNorms);
+            if (nearest == null || nearest.length < count) {
+                nearest = new int[count];
+                distances = new double[count];
+            }
+            DistanceKernel.nearest(block, 0, count, centerBlock, centerNorms, centers.length,
+                    dim, nearest, distances);
+            assignment = nearest;
+        }
+        //Accumulate the values
+        for (int i = 0; i < count; i++) {
+            int offset = assignment[i] * (dim + 1);
             for (int k = 0; k < dim; k++) {
-                centerSums[minimumCentroid][k] += datapoints[i][k];
+                centerSums[offset + k] += block[i * dim + k];
             }
-            centerSums[minimumCentroid][dim] += 1;
+            centerSums[offset + dim] += 1;
         }
-        LOG.fine("Kmeans centroid values:" + Arrays.deepToString(centerSums));
+        LOG.fine("Kmeans centroid values:" + Arrays.toString(centerSums));
         return centerSums;
     }
 
+    /**
+     * Copy the rows from index from up to index to in to one row major block
+     *
+     * @param block the block to reuse, a new one is allocated if it is null or too small
+     */
+    private static double[] flatten(double[][] rows, int from, int to, int dim, double[] block) {
+        if (block == null || block.length < (to - from) * dim) {
+            block = new double[(to - from) * dim];
+        }
+        for (int i = from; i < to; i++) {
+            System.arraycopy(rows[i], 0, block, (i - from) * dim, dim);
+        }
+        return block;
+    }
+
     /**
      * This method calculates the distance between the datapoint and the centroid value.
      */
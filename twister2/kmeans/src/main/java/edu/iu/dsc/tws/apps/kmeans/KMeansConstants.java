@@ -14,6 +14,7 @@ public class KMeansConstants {
     public static final String ARGS_CENTERS_SEED_VALUE = "cseedvalue";
     public static final String ARGS_DATA_INPUT = "input"; //"generate" or "read"
     public static final String ARGS_PARALLELISM_VALUE = "parallelism";
+    public static final String ARGS_PRUNE = "prune"; // skip the points which keep their cluster
 
     protected KMeansConstants() {
     }
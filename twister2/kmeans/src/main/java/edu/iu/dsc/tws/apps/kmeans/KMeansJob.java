@@ -43,7 +43,7 @@ public class KMeansJob extends TaskWorker {
         graphBuilder.addSource("source", kMeansSourceTask, parallelismValue);
         ComputeConnection computeConnection = graphBuilder.addSink("sink", kMeansAllReduceTask,
                 parallelismValue);
-        computeConnection.allreduce("source", "all-reduce", new CentroidAggregator(), DataType.OBJECT);
+        computeConnection.allreduce("source", "all-reduce", new CentroidAggregator(), DataType.DOUBLE);
         graphBuilder.setMode(OperationMode.BATCH);
 
         int workers = kMeansJobParameters.getWorkers();
@@ -81,19 +81,22 @@ public class KMeansJob extends TaskWorker {
                 noOfClusters);
 
         DataFlowTaskGraph graph = graphBuilder.build();
+        // the graph and the plan are the same for all the iterations
+        ExecutionPlan plan = taskExecutor.plan(graph);
 
         //Store datapoints and centroids
         DataSet<Object> datapoints = new DataSet<>(0);
         DataSet<Object> centroids = new DataSet<>(1);
 
+        // the points stay in the source tasks, only the centroids change between iterations
+        datapoints.addPartition(0, dataPoint);
+        taskExecutor.addInput(graph, plan, "source", "points", datapoints);
+
         for (int i = 0; i < iterations; i++) {
-            datapoints.addPartition(0, dataPoint);
             centroids.addPartition(1, centroid);
-
-            ExecutionPlan plan = taskExecutor.plan(graph);
-
-            taskExecutor.addInput(graph, plan, "source", "points", datapoints);
             taskExecutor.addInput(graph, plan, "source", "centroids", centroids);
+            // the sink keeps the centroid of a cluster without any points
+            taskExecutor.addInput(graph, plan, "sink", "centroids", centroids);
             taskExecutor.execute(graph, plan);
 
             DataSet<Object> dataSet = taskExecutor.getOutput(graph, plan, "sink");
@@ -116,24 +119,33 @@ public class KMeansJob extends TaskWorker {
         private double[][] centroid = null;
         private double[][] datapoints = null;
         private KMeansCalculator kMeansCalculator = null;
+        // the points of the calculator
+        private double[][] calculatorPoints = null;
 
         @Override
         public void execute() {
 
-            int startIndex = context.taskIndex() * datapoints.length / context.getParallelism();
-            int endIndex = startIndex + datapoints.length / context.getParallelism();
-
-            int dim = Integer.parseInt(config.getStringValue("dim"));
-
             LOG.fine("Original Centroid Value::::" + Arrays.deepToString(centroid));
 
-            kMeansCalculator = new KMeansCalculator(datapoints, centroid,
-                    context.taskIndex(), dim, startIndex, endIndex);
-            KMeansCenters kMeansCenters = kMeansCalculator.calculate();
+            // the calculator is kept while the points are the same, so with pruning the distance
+            // bounds of the points carry over to the next iteration
+            if (kMeansCalculator == null || calculatorPoints != datapoints) {
+                int startIndex = context.taskIndex() * datapoints.length / context.getParallelism();
+                int endIndex = startIndex + datapoints.length / context.getParallelism();
+                int dim = Integer.parseInt(config.getStringValue("dim"));
+                kMeansCalculator = new KMeansCalculator(datapoints, centroid,
+                        context.taskIndex(), dim, startIndex, endIndex);
+                kMeansCalculator.setPrune(Boolean.parseBoolean(
+                        config.getStringValue(KMeansConstants.ARGS_PRUNE)));
+                calculatorPoints = datapoints;
+            } else {
+                kMeansCalculator.setCentroids(centroid);
+            }
+            double[] centerSums = kMeansCalculator.calculate();
 
             LOG.fine("Task Index:::" + context.taskIndex() + "\t"
                     + "Calculated Centroid Value::::" + Arrays.deepToString(centroid));
-            context.writeEnd("all-reduce", kMeansCenters);
+            context.writeEnd("all-reduce", centerSums);
         }
 
         @SuppressWarnings("unchecked")
@@ -144,6 +156,7 @@ public class KMeansJob extends TaskWorker {
             int id = input.getId();
 
             if (id == 0) {
+                // the points are only given once and kept for all the iterations
                 Set<Object> dataPoints = input.getData();
                 this.datapoints = (double[][]) dataPoints.iterator().next();
             }
@@ -155,22 +168,34 @@ public class KMeansJob extends TaskWorker {
         }
     }
 
-    private static class KMeansAllReduceTask extends BaseBatchSink implements Collector<Object> {
+    private static class KMeansAllReduceTask extends BaseBatchSink implements Collector<Object>,
+            Receptor {
         private static final long serialVersionUID = -5190777711234234L;
 
-        private double[][] centroids;
+        // the centroids of this iteration
+        private double[][] centroid;
+
+        // the new centroids, a new array every iteration as they are the input of the next one
         private double[][] newCentroids;
 
         @Override
         public boolean execute(IMessage message) {
             LOG.log(Level.INFO, "Received centroids: " + context.getWorkerId()
                     + ":" + context.taskId());
-            centroids = ((KMeansCenters) message.getContent()).getCenters();
-            newCentroids = new double[centroids.length][centroids[0].length - 1];
-            for (int i = 0; i < centroids.length; i++) {
-                for (int j = 0; j < centroids[0].length - 1; j++) {
-                    double newVal = centroids[i][j] / centroids[i][centroids[0].length - 1];
-                    newCentroids[i][j] = newVal;
+            double[] centerSums = (double[]) message.getContent();
+            int dim = Integer.parseInt(config.getStringValue("dim"));
+            int clusters = centerSums.length / (dim + 1);
+            newCentroids = new double[clusters][dim];
+            for (int i = 0; i < clusters; i++) {
+                int offset = i * (dim + 1);
+                double count = centerSums[offset + dim];
+                if (count == 0) {
+                    // a cluster without any points keeps its centroid
+                    System.arraycopy(centroid[i], 0, newCentroids[i], 0, dim);
+                    continue;
+                }
+                for (int j = 0; j < dim; j++) {
+                    newCentroids[i][j] = centerSums[offset + j] / count;
                 }
             }
             LOG.fine("New Centroid Values:" + Arrays.deepToString(newCentroids));
@@ -181,10 +206,19 @@ public class KMeansJob extends TaskWorker {
         public Partition<Object> get() {
             return new Partition<>(context.taskIndex(), new KMeansCenters().setCenters(newCentroids));
         }
+
+        @Override
+        public void add(String name, DataSet<Object> data) {
+            if (data.getId() == 1) {
+                this.centroid = (double[][]) data.getData().iterator().next();
+            }
+        }
     }
 
     /**
-     * This class aggregates the cluster centroid values and sum the new centroid values.
+     * This class aggregates the cluster centroid values and sum the new centroid values. The
+     * sums and counts of the centroids are packed in to one array and the second one is added
+     * to the first in place.
      */
     public class CentroidAggregator implements IFunction {
         private static final long serialVersionUID = -254264120110286748L;
@@ -198,31 +232,19 @@ public class KMeansJob extends TaskWorker {
         @Override
         public Object onMessage(Object object1, Object object2) throws ArrayIndexOutOfBoundsException {
 
-            KMeansCenters kMeansCenters = (KMeansCenters) object1;
-            KMeansCenters kMeansCenters1 = (KMeansCenters) object2;
+            double[] centerSums = (double[]) object1;
+            double[] centerSums1 = (double[]) object2;
 
-            LOG.fine("Kmeans Centers 1:" + Arrays.deepToString(kMeansCenters.getCenters()));
-            LOG.fine("Kmeans Centers 2:" + Arrays.deepToString(kMeansCenters1.getCenters()));
-
-            KMeansCenters ret = new KMeansCenters();
-
-            double[][] newCentroids = new double[kMeansCenters.getCenters().length]
-                    [kMeansCenters.getCenters()[0].length];
-
-            if (kMeansCenters.getCenters().length != kMeansCenters1.getCenters().length) {
-                throw new RuntimeException("Center sizes not equal " + kMeansCenters.getCenters().length
-                        + " != " + kMeansCenters1.getCenters().length);
+            if (centerSums.length != centerSums1.length) {
+                throw new RuntimeException("Center sizes not equal " + centerSums.length
+                        + " != " + centerSums1.length);
             }
 
-            for (int j = 0; j < kMeansCenters.getCenters().length; j++) {
-                for (int k = 0; k < kMeansCenters.getCenters()[0].length; k++) {
-                    double newVal = kMeansCenters.getCenters()[j][k] + kMeansCenters1.getCenters()[j][k];
-                    newCentroids[j][k] = newVal;
-                }
+            for (int j = 0; j < centerSums.length; j++) {
+                centerSums[j] += centerSums1[j];
             }
-            ret.setCenters(newCentroids);
-            LOG.fine("Kmeans Centers final:" + Arrays.deepToString(newCentroids));
-            return ret;
+            LOG.fine("Kmeans Centers final:" + Arrays.toString(centerSums));
+            return centerSums;
         }
     }
 
@@ -41,6 +41,7 @@ public class KMeansJobMain {
         options.addOption(KMeansConstants.ARGS_CENTERS_SEED_VALUE, true, "cseedvalue");
         options.addOption(KMeansConstants.ARGS_DATA_INPUT, true, "generate");
         options.addOption(KMeansConstants.ARGS_PARALLELISM_VALUE, true, "4");
+        options.addOption(KMeansConstants.ARGS_PRUNE, false, "prune");
 
         @SuppressWarnings("deprecation")
         CommandLineParser commandLineParser = new DefaultParser();
@@ -85,6 +86,8 @@ public class KMeansJobMain {
         configurations.put(KMeansConstants.ARGS_POINTS_SEED_VALUE, Integer.toString(pSeedValue));
         configurations.put(KMeansConstants.ARGS_CENTERS_SEED_VALUE, Integer.toString(cSeedValue));
         configurations.put(KMeansConstants.ARGS_PARALLELISM_VALUE, Integer.toString(parallelismValue));
+        configurations.put(KMeansConstants.ARGS_PRUNE,
+                Boolean.toString(commandLine.hasOption(KMeansConstants.ARGS_PRUNE)));
 
         // build JobConfig
         JobConfig jobConfig = new JobConfig();
@@ -75,6 +75,11 @@ public class KMeansJobParameters {
 
     private String dataType;
 
+    /**
+     * Skip the distance computations of the points which can not change their cluster
+     */
+    private boolean prune;
+
     public KMeansJobParameters(int iterations, int workers) {
         this.iterations = iterations;
         this.workers = workers;
@@ -104,6 +109,8 @@ public class KMeansJobParameters {
         int parallelismVal =
                 Integer.parseInt(cfg.getStringValue(KMeansConstants.ARGS_PARALLELISM_VALUE));
 
+        boolean prune = Boolean.parseBoolean(cfg.getStringValue(KMeansConstants.ARGS_PRUNE));
+
         KMeansJobParameters jobParameters = new KMeansJobParameters(iterations, workers);
 
         jobParameters.workers = workers;
@@ -121,6 +128,7 @@ public class KMeansJobParameters {
         jobParameters.pointsSeedValue = pointsVal;
         jobParameters.centroidsSeedValue = centroidsVal;
         jobParameters.parallelismValue = parallelismVal;
+        jobParameters.prune = prune;
 
         return jobParameters;
     }
@@ -129,6 +137,10 @@ public class KMeansJobParameters {
         return parallelismValue;
     }
 
+    public boolean isPrune() {
+        return prune;
+    }
+
     public int getIterations() {
         return iterations;
     }
@@ -188,7 +200,8 @@ public class KMeansJobParameters {
                 + "\tdimension:" + dimension + "\tnumber of clusters:" + clusters
                 + "\tfilename:" + fileName + "\tdatapoints file:" + pointsFile
                 + "\tcenters file:" + centersFile
-                + "\tfilesys:" + fileSystem + "\tparallelism:" + parallelismValue);
+                + "\tfilesys:" + fileSystem + "\tparallelism:" + parallelismValue
+                + "\tprune:" + prune);
 
         return "JobParameters{"
                 + ", iterations=" + iterations
@@ -8,9 +8,16 @@ public class KMeansLocalFileReader {
 
     /**
      * It reads the datapoints from the corresponding file and store the data in a two-dimensional
-     * array for the later processing.
+     * array for the later processing. A binary point file is mapped instead of parsed.
      */
     public double[][] readDataPoints(String fName, int dimension) {
+        if (BinaryPointFile.isBinary(fName)) {
+            try {
+                return BinaryPointFile.readDataPoints(fName, dimension);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the binary points file " + fName, e);
+            }
+        }
 
         BufferedReader bufferedReader = null;
         File f = new File(fName);
@@ -47,9 +54,17 @@ public class KMeansLocalFileReader {
     /**
      * It reads the datapoints from the corresponding file and store the data in a two-dimensional
      * array for the later processing. The size of the two-dimensional array should be equal to the
-     * number of clusters and the dimension considered for the clustering process.
+     * number of clusters and the dimension considered for the clustering process. The first
+     * points of a binary point file are mapped instead of parsed.
      */
     public double[][] readCentroids(String fileName, int dimension, int numberOfClusters) {
+        if (BinaryPointFile.isBinary(fileName)) {
+            try {
+                return BinaryPointFile.readRows(fileName, 0, numberOfClusters, dimension);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the binary centroids file " + fileName, e);
+            }
+        }
 
         double[][] centroids = new double[numberOfClusters][dimension];
         BufferedReader bufferedReader = null;
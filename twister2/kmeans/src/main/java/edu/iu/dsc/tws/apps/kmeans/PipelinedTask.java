@@ -17,9 +17,26 @@ public class PipelinedTask {
 
   private double[] centers;
 
+  // the sums of the points of each center followed by their count, dimension + 1 values a
+  // center, so they are reduced as one array
   private double[] centerSums;
 
-  private int[] centerCounts;
+  // the sums alternate between two buffers. The all reduce may accumulate in to the sums of a
+  // task and hand them to the other tasks, see executeMap for when a buffer is reused
+  private double[][] sumBuffers;
+
+  // the sums of the last iteration are sent and its result is not applied yet
+  private boolean resultPending;
+
+  private double[] centerNorms;
+
+  // nearest center of each point and the squared distance to it
+  private int[] nearest;
+
+  private double[] distances;
+
+  // keeps the distance bounds of the points across iterations if pruning is enabled
+  private BoundedAssigner assigner;
 
   private int taskId;
 
@@ -39,14 +56,24 @@ public class PipelinedTask {
 
   public PipelinedTask(double[] points, double[] centers, int taskId, int dimension, int noOfIterations, int pointsForThread) {
     this.points = points;
-    this.centers = centers;
+    // the centers are updated in place, the tasks of a worker start from the same ones
+    this.centers = Arrays.copyOf(centers, centers.length);
     this.taskId = taskId;
     this.dimension = dimension;
     this.noOfIterations = noOfIterations;
     this.pointsForThread = pointsForThread;
 
-    this.centerSums = new double[centers.length];
-    this.centerCounts = new int[centers.length / dimension];
+    this.sumBuffers = new double[2][centers.length / dimension * (dimension + 1)];
+    this.centerSums = sumBuffers[0];
+    this.nearest = new int[pointsForThread];
+    this.distances = new double[pointsForThread];
+  }
+
+  /**
+   * Skip the points whose nearest center can not have changed since the previous iteration
+   */
+  public void setPrune(boolean prune) {
+    this.assigner = prune ? new BoundedAssigner(points, 0, pointsForThread, dimension) : null;
   }
 
   public void setbAllReduce(BAllReduce bAllReduce) {
@@ -63,8 +90,20 @@ public class PipelinedTask {
       return false;
     }
 
+    if (resultPending) {
+      throw new IllegalStateException(String.format(
+          "%d Iteration %d started before the result of the previous one", taskId,
+          currentIteration));
+    }
+
     long start = System.nanoTime();
 //    LOG.info(String.format("%d Points per thread %d itr %d", taskId,  pointsForThread, currentIteration));
+    // The buffer of iteration i - 2 is reused. Every task applies the result of an iteration
+    // before it sends the sums of the next one, checked above, so once this task has the
+    // result of iteration i - 1 all the tasks have read the result of iteration i - 2 and no
+    // one reads the buffer any more
+    centerSums = sumBuffers[currentIteration & 1];
+    Arrays.fill(centerSums, 0);
     findNearesetCenters(dimension, points, centers, centerSums, pointsForThread);
     currentIteration++;
     double time = (System.nanoTime() - start) / 1000000.0;
@@ -73,7 +112,8 @@ public class PipelinedTask {
     // now communicate
     emitTimes.add(System.currentTimeMillis());
 //    LOG.info(String.format("%d Sending centersum with length %d", taskId, centerSums.length));
-    bAllReduce.reduce(taskId, new Centers(centerSums, centerCounts), 0);
+    resultPending = true;
+    bAllReduce.reduce(taskId, centerSums, 0);
 
     return true;
   }
@@ -86,24 +126,36 @@ public class PipelinedTask {
     return emitTimes;
   }
 
-  public void updateCenters(Centers newCenters) {
-    if (centers.length != newCenters.getCenters().length) {
-      throw new RuntimeException(String.format("%d Received new centers with length %d", taskId, newCenters.getCenters().length));
+  /**
+   * Set the centers to the means of the reduced sums. The center of a cluster without any
+   * points does not change.
+   *
+   * @param newSums the sums of the points of each center followed by their count
+   */
+  public void updateCenters(double[] newSums) {
+    if (centerSums.length != newSums.length) {
+      throw new RuntimeException(String.format("%d Received new center sums with length %d", taskId, newSums.length));
     }
-    Arrays.fill(centerCounts, 0);
+    resultPending = false;
     int numCenters = centers.length / dimension;
     boolean converged = true;
-    for (int i = 0; i < numCenters; ++i) {
-      final int c = i;
-      double dist = getEuclideanDistance(newCenters.getCenters(), centers, dimension, (c * (dimension)), c*dimension);
-      if (dist > .00000001) {
-        // Can't break as center sums need to be divided to
-        // form new centers
+    for (int c = 0; c < numCenters; ++c) {
+      int offset = c * (dimension + 1);
+      double count = newSums[offset + dimension];
+      if (count == 0) {
+        continue;
+      }
+      double dist = 0;
+      for (int i = 0; i < dimension; i++) {
+        double value = newSums[offset + i] / count;
+        double d = value - centers[c * dimension + i];
+        dist += d * d;
+        centers[c * dimension + i] = value;
+      }
+      if (dist > .00000001 * .00000001) {
         converged = false;
       }
     }
-
-    centers = newCenters.getCenters();
   }
 
   public void progress() {
@@ -113,27 +165,20 @@ public class PipelinedTask {
   private void findNearesetCenters(int dimension, double[] points, double[] centers,
                                           double[] centerSumsAndCountsForThread,
                                           int pointsForThread) {
-    for (int i = 0; i < pointsForThread; ++i) {
-      int centerWithMinDist = findCenterWithMinDistance(points, centers, dimension, i);
-      int centerOffset = centerWithMinDist * dimension;
-      accumulate(points, centerSumsAndCountsForThread, i, centerOffset, dimension);
-      centerSums[centerWithMinDist]++;
-    }
-  }
-
-  private int findCenterWithMinDistance(double[] points, double[] centers, int dimension, int pointOffset) {
     int k = centers.length / dimension;
-    double dMin = Double.MAX_VALUE;
-    int dMinIdx = -1;
-//    LOG.info(String.format("%d K %d", taskId, k));
-    for (int j = 0; j < k; ++j) {
-      double dist = getEuclideanDistance(points, centers, dimension, pointOffset, j * dimension);
-      if (dist < dMin) {
-        dMin = dist;
-        dMinIdx = j;
-      }
+    int[] nearest = this.nearest;
+    if (assigner != null) {
+      nearest = assigner.assign(centers, k);
+    } else {
+      centerNorms = DistanceKernel.squaredNorms(centers, k, dimension, centerNorms);
+      DistanceKernel.nearest(points, 0, pointsForThread, centers, centerNorms, k, dimension,
+          nearest, distances);
+    }
+    for (int i = 0; i < pointsForThread; ++i) {
+      int centerOffset = nearest[i] * (dimension + 1);
+      accumulate(points, centerSumsAndCountsForThread, i * dimension, centerOffset, dimension);
+      centerSumsAndCountsForThread[centerOffset + dimension]++;
     }
-    return dMinIdx;
   }
 
   private void accumulate(double[] points, double[] centerSumsAndCounts,
@@ -142,13 +187,4 @@ public class PipelinedTask {
       centerSumsAndCounts[centerOffset + i] += points[pointOffset + i];
     }
   }
-
-  private double getEuclideanDistance(double[] point1, double[] point2,
-                                             int dimension, int point1Offset, int point2Offset) {
-    double d = 0.0;
-    for (int i = 0; i < dimension; ++i) {
-      d += Math.pow(point1[i + point1Offset] - point2[i + point2Offset], 2);
-    }
-    return Math.sqrt(d);
-  }
 }
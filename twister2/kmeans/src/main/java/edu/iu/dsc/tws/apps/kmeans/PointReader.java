@@ -8,55 +8,62 @@ public class PointReader {
 
   public static double[][] readPoints(String fileName, int noOfPoints, int noOfProcs,
                                int procIndex, int taskPerProc, int dimension) throws IOException {
+    if (BinaryPointFile.isBinary(fileName)) {
+      return BinaryPointFile.readPoints(fileName, noOfPoints, noOfProcs, procIndex, taskPerProc,
+          dimension);
+    }
     int pointsPerTask = noOfPoints / (taskPerProc * noOfProcs);
-    int offset = pointsPerTask * procIndex;
+    // the same split as a binary file, the tasks of the processes before take the points before
+    long offset = (long) pointsPerTask * taskPerProc * procIndex;
     double[][] doubles = new double[taskPerProc][];
     for (int i = 0; i < taskPerProc; i++) {
       doubles[i] = new double[pointsPerTask * dimension];
     }
+    if (pointsPerTask == 0) {
+      return doubles;
+    }
 
     File f = new File(fileName);
-    BufferedReader b = new BufferedReader(new FileReader(f));
-    String readLine = "";
-
-    int noOfRecords = 0;
-    int currentTask = 0;
-    int currentRecordsPerTask = 0;
-    int maxRecordsToRead = offset + noOfPoints / noOfProcs;
-    while ((readLine = b.readLine()) != null) {
-      noOfRecords++;
-      if (noOfRecords < offset) {
-        continue;
-      }
-
-      if (noOfRecords >= maxRecordsToRead) {
-        break;
-      }
-
-      String[] split = readLine.split(",");
-      if (split.length != dimension) {
-        throw new RuntimeException("Invalid line with length: " + split.length);
-      }
+    try (BufferedReader b = new BufferedReader(new FileReader(f))) {
+      String readLine;
+      long noOfRecords = 0;
+      int currentTask = 0;
+      int currentRecordsPerTask = 0;
+      while ((readLine = b.readLine()) != null) {
+        if (noOfRecords++ < offset) {
+          continue;
+        }
 
-//      LOG.info(String.format("ofset %d points per task %d records %d records per task %d current task %d",
-//          offset, pointsPerTask, noOfRecords, currentRecordsPerTask, currentTask));
-      for (int i = 0; i < dimension; i++) {
-        doubles[currentTask][i + currentTask * dimension] = Double.parseDouble(split[i].trim());
-      }
-      currentRecordsPerTask++;
+        String[] split = readLine.split(",");
+        if (split.length != dimension) {
+          throw new RuntimeException("Invalid line with length: " + split.length);
+        }
 
-      if (currentRecordsPerTask == pointsPerTask) {
-        currentRecordsPerTask = 0;
-        currentTask++;
-        if (currentTask == taskPerProc) {
-          break;
+        for (int i = 0; i < dimension; i++) {
+          doubles[currentTask][currentRecordsPerTask * dimension + i] =
+              Double.parseDouble(split[i].trim());
+        }
+        currentRecordsPerTask++;
+
+        if (currentRecordsPerTask == pointsPerTask) {
+          currentRecordsPerTask = 0;
+          currentTask++;
+          if (currentTask == taskPerProc) {
+            break;
+          }
         }
       }
+      if (currentTask < taskPerProc) {
+        throw new IOException("Not enough points in " + fileName + " for process " + procIndex);
+      }
     }
     return doubles;
   }
 
   public static double[] readClusters(String clusterFileName,  int dimension, int clusters) throws IOException {
+    if (BinaryPointFile.isBinary(clusterFileName)) {
+      return BinaryPointFile.readClusters(clusterFileName, dimension, clusters);
+    }
     double[] clusterPoints = new double[dimension * clusters];
 
     File f = new File(clusterFileName);
@@ -36,6 +36,7 @@ public class Program {
     options.addOption(Utils.createOption(Constants.ARGS_DIMENSIONS, true, "Dimensions", true));
     options.addOption(Utils.createOption(Constants.ARGS_K, true, "K", true));
     options.addOption(Utils.createOption(Constants.ARGS_N_POINTS, true, "K", true));
+    options.addOption(Utils.createOption(Constants.ARGS_PRUNE, false, "Prune", false));
 
     CommandLineParser commandLineParser = new DefaultParser();
     CommandLine cmd = commandLineParser.parse(options, args);
@@ -93,6 +94,7 @@ public class Program {
     jobConfig.put(Constants.ARGS_K, k);
     jobConfig.put(Constants.ARGS_POINT, point);
     jobConfig.put(Constants.ARGS_DIMENSIONS, dim);
+    jobConfig.put(Constants.ARGS_PRUNE, Boolean.toString(cmd.hasOption(Constants.ARGS_PRUNE)));
 
     // build the job
     /*BasicJob basicJob = null;
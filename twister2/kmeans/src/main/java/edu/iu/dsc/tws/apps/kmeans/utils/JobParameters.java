@@ -42,6 +42,8 @@ public class JobParameters {
 
   private String cenerFile;
 
+  private boolean prune;
+
   public JobParameters(int size, int iterations, int col,
                        int containers, List<Integer> taskStages, int gap) {
     this.size = size;
@@ -128,6 +130,10 @@ public class JobParameters {
     return cenerFile;
   }
 
+  public boolean isPrune() {
+    return prune;
+  }
+
   public static JobParameters build(Config cfg) {
     int iterations = Integer.parseInt(cfg.getStringValue(Constants.ARGS_ITR));
     int size = Integer.parseInt(cfg.getStringValue(Constants.ARGS_SIZE));
@@ -146,6 +152,7 @@ public class JobParameters {
     int points = Integer.parseInt(cfg.getStringValue(Constants.ARGS_N_POINTS));
     int k = Integer.parseInt(cfg.getStringValue(Constants.ARGS_K));
     int d = Integer.parseInt(cfg.getStringValue(Constants.ARGS_DIMENSIONS));
+    boolean prune = Boolean.parseBoolean(cfg.getStringValue(Constants.ARGS_PRUNE));
 
     String[] stages = taskStages.split(",");
     List<Integer> taskList = new ArrayList<>();
@@ -167,6 +174,7 @@ public class JobParameters {
     jobParameters.cenerFile = centerFile;
     jobParameters.numPoints = points;
     jobParameters.dimension = d;
+    jobParameters.prune = prune;
 
     return jobParameters;
   }
@@ -1,5 +1,6 @@
 package edu.iu.dsc.tws.apps.terasort;
 
+import edu.iu.dsc.tws.apps.terasort.utils.Record;
 import org.apache.hadoop.io.Text;
 
 import java.io.IOException;
@@ -14,7 +15,19 @@ public class PartitionTree {
 
     // eastcirclek
     public int getPartition(Text key) {
-        return root.findPartition(key);
+        return root.findPartition(key, 0);
+    }
+
+    /**
+     * Find the partition of a key. A key equal to a split point repeated over several partitions
+     * is a hot key, and its records are spread over those partitions in round robin by the
+     * sequence, so the same sequence always gives the same partition.
+     *
+     * @param key the key
+     * @param sequence a number of the record, i.e. its source plus its position in the input
+     */
+    public int getPartition(Text key, int sequence) {
+        return root.findPartition(key, sequence);
     }
 
     /**
@@ -27,7 +40,7 @@ public class PartitionTree {
             this.level = level;
         }
 
-        abstract int findPartition(Text key);
+        abstract int findPartition(Text key, int sequence);
 
         abstract void print(PrintStream strm) throws IOException;
 
@@ -47,12 +60,12 @@ public class PartitionTree {
             super(level);
         }
 
-        int findPartition(Text key) {
+        int findPartition(Text key, int sequence) {
             int level = getLevel();
             if (key.getLength() <= level) {
-                return child[0].findPartition(key);
+                return child[0].findPartition(key, sequence);
             }
-            return child[key.getBytes()[level] & 0xff].findPartition(key);
+            return child[key.getBytes()[level] & 0xff].findPartition(key, sequence);
         }
 
         void setChild(int idx, TrieNode child) {
@@ -81,18 +94,49 @@ public class PartitionTree {
         int lower;
         int upper;
         Text[] splitPoints;
+        // first 8 bytes of the split points lower..upper as unsigned longs
+        long[] splitPrefixes;
+        // number of split points from this one which are equal to it
+        int[] ties;
 
         LeafTrieNode(int level, Text[] splitPoints, int lower, int upper) {
             super(level);
             this.splitPoints = splitPoints;
             this.lower = lower;
             this.upper = upper;
+            this.splitPrefixes = new long[upper - lower];
+            for (int i = lower; i < upper; ++i) {
+                splitPrefixes[i - lower] = Record.prefix(splitPoints[i]);
+            }
+            // equal split points share the prefix, so they are all in the same leaf
+            this.ties = new int[upper - lower];
+            for (int i = upper - 1; i >= lower; --i) {
+                int next = i + 1 - lower;
+                if (next < ties.length && splitPrefixes[next] == splitPrefixes[i - lower]
+                        && Record.compareSuffix(splitPoints[i + 1], splitPoints[i]) == 0) {
+                    ties[i - lower] = ties[next] + 1;
+                } else {
+                    ties[i - lower] = 1;
+                }
+            }
         }
 
-        int findPartition(Text key) {
+        int findPartition(Text key, int sequence) {
+            long prefix = Record.prefix(key);
             for (int i = lower; i < upper; ++i) {
-                if (splitPoints[i].compareTo(key) >= 0) {
-                    return i;
+                long split = splitPrefixes[i - lower];
+                if (split != prefix) {
+                    if (Long.compareUnsigned(split, prefix) > 0) {
+                        return i;
+                    }
+                } else {
+                    int c = Record.compareSuffix(splitPoints[i], key);
+                    if (c > 0) {
+                        return i;
+                    } else if (c == 0) {
+                        // the partitions after i up to the last equal split point only hold this key
+                        return i + (sequence & Integer.MAX_VALUE) % ties[i - lower];
+                    }
                 }
             }
             return upper;
@@ -0,0 +1,228 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort;
+
+import edu.iu.dsc.tws.apps.terasort.utils.Record;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates the input files of terasort, filePrefix + worker + "_" + task in the output folder,
+ * in the 10 byte key and 90 byte value layout of Record. TeraGen runs once on each node with the
+ * index of the node, and the files of the node are numbered after the files of the nodes before
+ * it. Every range of RANGE_RECORDS records has its own random generator seeded from the seed and
+ * the global number of its first record, so the nodes generate different records from the same
+ * seed, the files are the same for any number of threads and any range can be generated again
+ * on its own. The seed has to be the same on all the nodes, so they share the duplicate keys.
+ *
+ * The keys are uniform random unless skew or duplicates are given. With skew a fraction of the
+ * keys start with the same byte, which puts them in a few partitions. With duplicates a
+ * fraction of the keys are picked from a small set of keys, giving long runs of equal keys.
+ */
+public final class TeraGen {
+    private static final Logger LOG = Logger.getLogger(TeraGen.class.getName());
+    // records generated from one seed
+    public static final int RANGE_RECORDS = 1 << 20;
+    // first byte of the keys which are skewed
+    private static final int HOT_BYTE = 0x42;
+
+    private String folder;
+    private String filePrefix;
+    private long recordsPerFile;
+    private long seed;
+    private double skew;
+    private double duplicates;
+    private byte[][] duplicateKeys;
+
+    public TeraGen(String folder, String filePrefix, long recordsPerFile, long seed,
+                   double skew, double duplicates, int distinctDuplicates) {
+        this.folder = folder;
+        this.filePrefix = filePrefix;
+        this.recordsPerFile = recordsPerFile;
+        this.seed = seed;
+        this.skew = skew;
+        this.duplicates = duplicates;
+        SplittableRandom random = new SplittableRandom(seed);
+        this.duplicateKeys = new byte[distinctDuplicates][Record.KEY_SIZE];
+        for (byte[] key : duplicateKeys) {
+            nextBytes(random, key);
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("output", true, "Output directory");
+        options.addOption("filePrefix", true, "Prefix of the file partition");
+        options.addOption("node", true, "Index of this node, the nodes generate different records");
+        options.addOption("workers", true, "Number of workers of a node");
+        options.addOption("tasksPerWorker", true, "Number of files for each worker");
+        options.addOption("records", true, "Number of records in each file");
+        options.addOption("threads", true, "Number of threads");
+        options.addOption("seed", true, "Seed of the random generators");
+        options.addOption("skew", true, "Fraction of the keys with the same first byte");
+        options.addOption("duplicates", true, "Fraction of the keys picked from a small set");
+        options.addOption("distinctDuplicates", true, "Number of keys in the small set");
+        CommandLineParser commandLineParser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = commandLineParser.parse(options, args);
+        } catch (ParseException e) {
+            LOG.log(Level.SEVERE, "Failed to read the options", e);
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("program", options);
+            throw new RuntimeException(e);
+        }
+
+        TeraGen gen = new TeraGen(cmd.getOptionValue("output"),
+                cmd.getOptionValue("filePrefix", "part"),
+                Long.parseLong(cmd.getOptionValue("records")),
+                Long.parseLong(cmd.getOptionValue("seed", "0")),
+                Double.parseDouble(cmd.getOptionValue("skew", "0")),
+                Double.parseDouble(cmd.getOptionValue("duplicates", "0")),
+                Integer.parseInt(cmd.getOptionValue("distinctDuplicates", "16")));
+        int threads = Integer.parseInt(cmd.getOptionValue("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        gen.generate(Integer.parseInt(cmd.getOptionValue("node", "0")),
+                Integer.parseInt(cmd.getOptionValue("workers", "1")),
+                Integer.parseInt(cmd.getOptionValue("tasksPerWorker", "1")), threads);
+    }
+
+    /**
+     * Generate the files of all the workers of a node
+     *
+     * @param node index of the node, all the nodes have the same number of workers
+     */
+    public void generate(int node, int workers, int tasksPerWorker, int threads) {
+        new File(folder).mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            long ranges = (recordsPerFile + RANGE_RECORDS - 1) / RANGE_RECORDS;
+            for (int w = 0; w < workers; w++) {
+                for (int t = 0; t < tasksPerWorker; t++) {
+                    // global number of the file over all the nodes
+                    final long file = ((long) node * workers + w) * tasksPerWorker + t;
+                    final String fileName = Paths.get(folder, filePrefix + w + "_" + t).toString();
+                    RandomAccessFile out = new RandomAccessFile(fileName, "rw");
+                    out.setLength(recordsPerFile * Record.RECORD_LENGTH);
+                    out.close();
+                    for (long r = 0; r < ranges; r++) {
+                        final long start = r * RANGE_RECORDS;
+                        final int count = (int) Math.min(RANGE_RECORDS, recordsPerFile - start);
+                        futures.add(executor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                writeRange(fileName, file * recordsPerFile + start, start, count);
+                            }
+                        }));
+                    }
+                }
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            LOG.log(Level.SEVERE, "Failed to generate the files", e);
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Generate a range of records and write it at its place in the file
+     *
+     * @param fileName the file
+     * @param row global number of the first record, which decides the records
+     * @param start position of the first record in the file
+     * @param count number of records
+     */
+    public void writeRange(String fileName, long row, long start, int count) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(count * Record.RECORD_LENGTH);
+        generate(row, count, buffer);
+        buffer.flip();
+        try {
+            RandomAccessFile out = new RandomAccessFile(fileName, "rw");
+            FileChannel channel = out.getChannel();
+            long position = start * Record.RECORD_LENGTH;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            out.close();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed write to disc", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Generate the records starting from the given global record number
+     */
+    public void generate(long row, int count, ByteBuffer out) {
+        SplittableRandom random = new SplittableRandom(seed ^ (row * 0x9E3779B97F4A7C15L));
+        byte[] key = new byte[Record.KEY_SIZE];
+        byte[] value = new byte[Record.DATA_SIZE];
+        for (int i = 0; i < count; i++) {
+            if (duplicates > 0 && random.nextDouble() < duplicates) {
+                System.arraycopy(duplicateKeys[random.nextInt(duplicateKeys.length)], 0,
+                        key, 0, Record.KEY_SIZE);
+            } else {
+                nextBytes(random, key);
+                if (skew > 0 && random.nextDouble() < skew) {
+                    key[0] = (byte) HOT_BYTE;
+                }
+            }
+            fillValue(row + i, value);
+            out.put(key);
+            out.put(value);
+        }
+    }
+
+    /**
+     * The value is the record number in 32 hex digits followed by filler letters, like TeraGen
+     */
+    private static void fillValue(long row, byte[] value) {
+        for (int i = 0; i < 32; i++) {
+            int digit = i < 16 ? 0 : (int) (row >>> ((31 - i) * 4)) & 0xf;
+            value[i] = (byte) Character.forDigit(digit, 16);
+        }
+        for (int i = 32; i < Record.DATA_SIZE - 2; i++) {
+            value[i] = (byte) ('A' + (row + i) % 26);
+        }
+        value[Record.DATA_SIZE - 2] = '\r';
+        value[Record.DATA_SIZE - 1] = '\n';
+    }
+
+    private static void nextBytes(SplittableRandom random, byte[] bytes) {
+        for (int i = 0; i < bytes.length; ) {
+            long r = random.nextLong();
+            for (int n = 0; n < 8 && i < bytes.length; n++, r >>>= 8) {
+                bytes[i++] = (byte) r;
+            }
+        }
+    }
+}
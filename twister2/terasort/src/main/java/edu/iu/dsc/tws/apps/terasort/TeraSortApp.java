@@ -30,9 +30,13 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.hadoop.io.Text;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,7 +47,16 @@ public class TeraSortApp implements IContainer {
     private String filePrefix;
     private String outputFolder;
     private int maxRecordsInMemory;
+    private int spillWorkers;
+    private int loaderThreads;
+    private boolean compressSpills;
+    private String spillStore;
+    private int lmdbMapSizeGB;
     private String tmpFolder;
+    private String metricsFolder;
+    private int bucketsPerTask;
+    // memory of the buckets before spilling, 0 for half the memory of the jvm
+    private int bucketMemoryMB;
     private String partitionType;
 
     private int partitionSampleNodes;
@@ -70,14 +83,31 @@ public class TeraSortApp implements IContainer {
     private DataFlowOperation samplesGather;
     private DataFlowOperation keyBroadCast;
     private DataFlowOperation partitionOp;
-    private boolean samplingDone = false;
-    private List<Record[]> sampleData;
-
-    private boolean broadcastDone = false;
-    private Text[] selectedKeys;
+    // tell all the workers once the partition is complete on every worker
+    private DataFlowOperation doneGather;
+    private DataFlowOperation doneBroadCast;
+    // counted down by the receivers when the stages complete on this worker
+    private CountDownLatch samplingDone = new CountDownLatch(1);
+    private List<byte[]> sampleData;
+
+    private CountDownLatch broadcastDone = new CountDownLatch(1);
+    private byte[] selectedKeys;
     private PartitionTree tree;
 
-    private boolean reduceDone = false;
+    private CountDownLatch reduceDone = new CountDownLatch(1);
+    // all the workers reported their partition complete to worker 0, and worker 0 told everyone
+    private CountDownLatch doneGathered = new CountDownLatch(1);
+    private CountDownLatch allDone = new CountDownLatch(1);
+    // time the operations are still progressed after the partition completed everywhere
+    private long lingerMillis;
+    // records in each buffer the input is read in to
+    private static final int READ_BUFFER_RECORDS = 1 << 14;
+    // blocks of a task queued for sending before the loader threads wait
+    private static final int SEND_QUEUE_BLOCKS = 1024;
+    // progresses the operations of this worker
+    private ProgressEngine progressEngine = new ProgressEngine();
+    // time and records of the stages on this worker
+    private StageMetrics metrics;
 
     @Override
     public void init(Config cfg, int containerId, ResourcePlan plan) {
@@ -90,7 +120,17 @@ public class TeraSortApp implements IContainer {
         block_size = cfg.getIntegerValue("bsize", 1);
         recordLimit = cfg.getIntegerValue("recordLimit", 312500 * 2);
         maxRecordsInMemory = cfg.getIntegerValue("maxRecordsInMemory", 100000);
+        spillWorkers = cfg.getIntegerValue("spillWorkers", 2);
+        loaderThreads = cfg.getIntegerValue("loaderThreads", 2);
+        compressSpills = cfg.getBooleanValue("compressSpills");
+        spillStore = cfg.getStringValue("spillStore");
+        lmdbMapSizeGB = cfg.getIntegerValue("lmdbMapSizeGB", 64);
         tmpFolder = cfg.getStringValue("tmpFolder");
+        metricsFolder = cfg.getStringValue("metricsFolder");
+        bucketsPerTask = cfg.getIntegerValue("bucketsPerTask", 0);
+        bucketMemoryMB = cfg.getIntegerValue("bucketMemoryMB", 0);
+        lingerMillis = cfg.getIntegerValue("lingerMillis", 1000);
+        metrics = new StageMetrics(containerId);
         workerLocalID = containerId % workersPerNode;
         this.resourcePlan = plan;
         sampleNodes = new ArrayList<>();
@@ -109,6 +149,7 @@ public class TeraSortApp implements IContainer {
         TWSNetwork network = new TWSNetwork(cfg, taskPlan);
 
         TWSCommunication channel = network.getDataFlowTWSCommunication();
+        progressEngine.setChannel(channel);
         // creating the source task and destinations in communication
         Set<Integer> sources = new HashSet<>();
         Set<Integer> dests = new HashSet<>();
@@ -132,19 +173,20 @@ public class TeraSortApp implements IContainer {
             mapThread.start();
         }
 
-        Thread progressSample = new Thread(new TeraSortApp.ProgressThreadSG(samplesGather));
-        progressSample.start();
+        progressEngine.register(samplesGather);
 
-        Text[] selected = new Text[0];
+        byte[] selected = new byte[0];
         if (id == 0) {
-            while (!samplingDone) {
-                channel.progress();
-            }
+            progressEngine.await(samplingDone);
         }
 
         if (id == 0) {
+            long selectionStart = System.nanoTime();
             selected = getSelectedKeys(sampleData);
+            metrics.record(StageMetrics.Stage.KEY_SELECTION, selectionStart,
+                    selected.length / Record.KEY_SIZE, selected.length);
         }
+        long broadcastStart = System.nanoTime();
 
         //Not lets start the threads to get the records from the previous step
         edgeCount++;
@@ -156,13 +198,13 @@ public class TeraSortApp implements IContainer {
             Thread mapThread = new Thread(new TeraSortApp.BoardCastKeys(NO_OF_TASKS, selected));
             mapThread.start();
         }
-        samplingDone = true;
-        Thread progressBroadcast = new Thread(new TeraSortApp.ProgressThreadB(keyBroadCast));
-        progressBroadcast.start();
+        progressEngine.register(keyBroadCast);
 
-        while (!broadcastDone) {
-            channel.progress();
-        }
+        progressEngine.await(broadcastDone);
+        metrics.record(StageMetrics.Stage.KEY_BROADCAST, broadcastStart,
+                selectedKeys.length / Record.KEY_SIZE, selectedKeys.length);
+        // the keys are only broadcast after all the samples are gathered
+        progressEngine.finish(samplesGather);
         LOG.info(String.format("%d Completed Boardcast thread", id));
         //Completed broadbast
         edgeCount++;
@@ -182,134 +224,106 @@ public class TeraSortApp implements IContainer {
         partitionOp = channel.partition(newCfg, MessageType.MULTI_FIXED_BYTE, MessageType.MULTI_FIXED_BYTE, edgeCount,
                 sources, dests, finalPartitionRec);
         finalPartitionRec.setMap(expectedIds);
+        edgeCount++;
+        doneGather = channel.gather(newCfg, MessageType.OBJECT, edgeCount, sources,
+                dest, new GatherBatchFinalReceiver(new DoneCollectionReceiver()),
+                new GatherBatchPartialReceiver(dest));
+        edgeCount++;
+        doneBroadCast = channel.broadCast(newCfg, MessageType.OBJECT, edgeCount, dest,
+                sources, new DoneReceive());
         LOG.info(String.format("%d Before partitionOp thread memory Map", id));
 
+        Thread[] distributers = new Thread[noOfTasksPerExecutor];
         for (int i = 0; i < noOfTasksPerExecutor; i++) {
             int taskId = i;
             LOG.info(String.format("%d Starting Distributer %d", id, i + id * noOfTasksPerExecutor));
-            Thread mapThread = new Thread(new TeraSortApp.DistributeData(i + id * noOfTasksPerExecutor, taskId, partitionType));
-            mapThread.start();
+            distributers[i] = new Thread(new TeraSortApp.DistributeData(i + id * noOfTasksPerExecutor, taskId, partitionType));
+            distributers[i].start();
         }
 
         LOG.info(String.format("%d After partitionOp thread memory Map", id));
 
-        Thread progressPartition = new Thread(new TeraSortApp.ProgressThreadP(partitionOp));
-        progressPartition.start();
+        progressEngine.register(partitionOp);
+        progressEngine.register(doneGather);
+        progressEngine.register(doneBroadCast);
 
-        while (!reduceDone) {
-            channel.progress();
+        progressEngine.await(reduceDone);
+        // all the workers sent their records after receiving the keys
+        progressEngine.finish(keyBroadCast);
+        try {
+            for (Thread distributer : distributers) {
+                distributer.join();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
         endTimePartition = System.currentTimeMillis();
+        // the records of this worker may still be queued for the workers which are not done, so
+        // the partition operation is progressed until every worker has received all its records
+        for (int i = 0; i < noOfTasksPerExecutor; i++) {
+            progressEngine.send(doneGather, i + id * noOfTasksPerExecutor, new byte[0],
+                    MessageFlags.FLAGS_LAST);
+        }
+        if (id == 0) {
+            progressEngine.await(doneGathered);
+            progressEngine.send(doneBroadCast, NO_OF_TASKS, new byte[0], MessageFlags.FLAGS_LAST);
+        }
+        progressEngine.await(allDone);
+        // the broadcast may still be forwarded through this worker
+        progressEngine.linger(lingerMillis);
+        progressEngine.finish(partitionOp);
+        progressEngine.finish(doneGather);
+        progressEngine.finish(doneBroadCast);
         long endTimeTotal = System.currentTimeMillis();
         System.out.println("Time taken for partition Operation : " + (endTimePartition - startTimePartition));
         System.out.println("====================== Total Time taken : " + (endTimeTotal - startTimeTotal));
         System.out.println("Partition Type: " + partitionType);
-        System.out.println("Tera Sort Completed...");
-        while (true) {
-            //Waiting to make sure this thread does not die
-            channel.progress();
-        }
-
-    }
-
-    private class ProgressThreadSG implements Runnable {
-        private DataFlowOperation operation;
-
-        public ProgressThreadSG(DataFlowOperation operation) {
-            this.operation = operation;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // we should progress the communication directive
-                    if (!samplingDone) {
-                        this.operation.progress();
-                        Thread.yield();
-                    } else {
-                        this.operation.progress();
-                        Thread.sleep(1);
-                    }
-
-                } catch (Throwable t) {
-                    LOG.log(Level.SEVERE, "Something bad happened", t);
-                }
-            }
-        }
-    }
-
-    private class ProgressThreadB implements Runnable {
-        private DataFlowOperation operation;
-
-        public ProgressThreadB(DataFlowOperation operation) {
-            this.operation = operation;
+        LOG.info(String.format("%d Stage metrics%n%s", id, metrics.toCsv()));
+        if (metricsFolder != null) {
+            metrics.write(Paths.get(metricsFolder, "metrics_" + id + ".csv").toString());
+            metrics.write(Paths.get(metricsFolder, "metrics_" + id + ".json").toString());
         }
+        System.out.println("Tera Sort Completed...");
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    if (!broadcastDone) {
-                        this.operation.progress();
-                        Thread.yield();
-                    } else {
-                        this.operation.progress();
-                        Thread.sleep(1);
-                    }
-                } catch (Throwable t) {
-                    LOG.log(Level.SEVERE, "Something bad happened", t);
-                }
-            }
-        }
     }
 
-    private class ProgressThreadP implements Runnable {
-        private DataFlowOperation operation;
-
-        public ProgressThreadP(DataFlowOperation operation) {
-            this.operation = operation;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    if (!reduceDone) {
-                        this.operation.progress();
-                        Thread.yield();
-                    } else {
-                        this.operation.progress();
-                        Thread.yield();
-//                        Thread.sleep(1);
-                    }
-                } catch (Throwable t) {
-                    LOG.log(Level.SEVERE, "Something bad happened", t);
-                }
-            }
-        }
+    /**
+     * Select the keys splitting the buckets from the packed sample keys of all the workers.
+     * The keys are sorted in place of records, so there are no objects per sample.
+     */
+    private byte[] getSelectedKeys(List<byte[]> samples) {
+        int total = 0;
+        for (byte[] s : samples) {
+            total += s.length;
+        }
+        byte[] keys = new byte[total];
+        int offset = 0;
+        for (byte[] s : samples) {
+            System.arraycopy(s, 0, keys, offset, s.length);
+            offset += s.length;
+        }
+        int[] sorted = DataPartitioner.sort(keys);
+        // with buckets the keys of the buckets of all the tasks are selected
+        int buckets = NO_OF_TASKS * Math.max(1, bucketsPerTask);
+        byte[] selected = DataPartitioner.select(keys, sorted, buckets);
+        byte[] splitters = partitionKeys(selected);
+        LOG.info(String.format("%d Expected partition imbalance %.3f with %d samples, %d hot keys", id,
+                DataPartitioner.imbalance(keys, sorted, splitters), sorted.length,
+                DataPartitioner.hotKeys(splitters)));
+        return selected;
     }
 
-    private Text[] getSelectedKeys(List<Record[]> records) {
-        List<Record> partitionRecordList = new ArrayList<>();
-        for (Record[] recordList : records) {
-            for (Record record : recordList) {
-                partitionRecordList.add(record);
-            }
-        }
-//        System.out.println("Total number of sample records : " + partitionRecordList.size());
-        int noOfSelectedKeys = NO_OF_TASKS - 1;
-//        byte[] selectedKeys = new byte[Record.KEY_SIZE * noOfSelectedKeys];
-        Text[] selectedKeys = new Text[noOfSelectedKeys];
-        //Sort the collected records
-        Collections.sort(partitionRecordList);
-        int div = partitionRecordList.size() / NO_OF_TASKS;
-        for (int i = 0; i < noOfSelectedKeys; i++) {
-//            System.arraycopy(partitionRecordList.get((i + 1) * div).getKey().getBytes(), 0,
-//                    selectedKeys, i * Record.KEY_SIZE, Record.KEY_SIZE);
-            selectedKeys[i] = partitionRecordList.get((i + 1) * div).getKey();
-        }
-        return selectedKeys;
+    /**
+     * The keys splitting the tasks, every bucketsPerTask th of the selected keys
+     */
+    private byte[] partitionKeys(byte[] selected) {
+        int step = Math.max(1, bucketsPerTask);
+        byte[] splitters = new byte[(NO_OF_TASKS - 1) * Record.KEY_SIZE];
+        for (int i = 0; i < NO_OF_TASKS - 1; i++) {
+            System.arraycopy(selected, ((i + 1) * step - 1) * Record.KEY_SIZE, splitters,
+                    i * Record.KEY_SIZE, Record.KEY_SIZE);
+        }
+        return splitters;
     }
 
      /**
@@ -332,24 +346,15 @@ public class TeraSortApp implements IContainer {
                 LOG.log(Level.INFO, "Starting map worker: " + id);
 //      MPIBuffer datacols = new MPIBuffer(1024);
                 startTime = System.nanoTime();
+                long sampleStart = startTime;
                 String inputFile = Paths.get(inputFolder, filePrefix
                         + workerLocalID + "_" + Integer.toString(localId)).toString();
-                List<Record> records = DataLoader.load(id, inputFile, partitionSamplesPerNode);
-                Record[] partitionRecords = new Record[partitionSamplesPerNode];
-                for (int i = 0; i < partitionSamplesPerNode; i++) {
-                    partitionRecords[i] = records.get(i);
-                }
+                byte[] keys = DataLoader.sampleKeys(id, inputFile, partitionSamplesPerNode);
 
                 int flags = MessageFlags.FLAGS_LAST;
-                while (!samplesGather.send(task, partitionRecords, flags)) {
-                    // lets wait a litte and try again
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                Thread.yield();
+                progressEngine.send(samplesGather, task, keys, flags);
+                metrics.record(StageMetrics.Stage.SAMPLE_GATHER, sampleStart,
+                        keys.length / Record.KEY_SIZE, keys.length);
 //                System.out.println("######## : Container id : " + id + "local id : "
 //                        + localId + " Records : " + records.size());
 
@@ -361,31 +366,32 @@ public class TeraSortApp implements IContainer {
     }
 
     private class BoardCastKeys implements Runnable {
-        Text[] sendData;
+        byte[] sendData;
 
-        public BoardCastKeys(int taskId, Text[] data) {
+        public BoardCastKeys(int taskId, byte[] data) {
             this.sendData = data;
         }
 
         @Override
         public void run() {
             int flags = MessageFlags.FLAGS_LAST;
-            while (!keyBroadCast.send(NO_OF_TASKS, sendData, flags)) {
-                // lets wait a litte and try again
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
+            progressEngine.send(keyBroadCast, NO_OF_TASKS, sendData, flags);
         }
     }
 
+    /**
+     * Reads, partitions and sends the records of an input file as a pipeline. The file is read
+     * in to a pool of buffers by this thread, the loader threads partition the buffers in to
+     * blocks for the destinations and a sender thread sends the blocks in order. The stages
+     * are connected by bounded queues, so reading, partitioning and sending overlap.
+     */
     private class DistributeData implements Runnable {
         private int task = 0;
         private int localId = 0;
         private String partitionType = "SIMPLE";
+        // blocks waiting to be sent and the marker of their end
+        private BlockingQueue<Block> sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_BLOCKS);
+        private final Block end = new Block(-1, 0, null);
 
         public DistributeData(int task, int localId) {
             this.task = task;
@@ -400,87 +406,28 @@ public class TeraSortApp implements IContainer {
 
         @Override
         public void run() {
+            long sendStart = System.nanoTime();
             String inputFile = Paths.get(inputFolder, filePrefix
                     + workerLocalID + "_" + Integer.toString(localId)).toString();
-            Map<Integer, List<byte[]>> keyMap = new HashMap<>();
-            Map<Integer, List<byte[]>> dataMap = new HashMap<>();
-            Map<Integer, Integer> countsMap = new HashMap<>();
-
-            for (int i = 0; i < NO_OF_TASKS; i++) {
-                keyMap.put(i, new ArrayList<>(block_size));
-                dataMap.put(i, new ArrayList<>(block_size));
-                countsMap.put(i, 0);
-                for (int k = 0; k < block_size; k++) {
-                    keyMap.get(i).add(new byte[1]);
-                    dataMap.get(i).add(new byte[1]);
-                }
-            }
-
-            List<byte[]> keyList = new ArrayList<>(block_size);
-            List<byte[]> dataList = new ArrayList<>(block_size);
-            List<byte[]> recordsKeys = new ArrayList<>();
-            List<byte[]> recordsVals = new ArrayList<>();
-
-
-            // Init the records set
-            for (int i = 0; i < recordLimit; i++) {
-                recordsKeys.add(new byte[10]);
-                recordsVals.add(new byte[90]);
-            }
-
-            boolean done = false;
-            int loopCount = 0;
-            KeyedContent keyedContent = null;
-            int partition;
-            int localCount;
-
-            Text tempText;
-            int countRecords = 0;
-            try {
-                DataInputStream in = new DataInputStream(
-                        new BufferedInputStream(
-                                new FileInputStream(new File(inputFile))));
-                while (!done) {
-                    countRecords = DataLoader.load(in, recordLimit, id, recordsKeys, recordsVals);
-                    if (countRecords == 0) {
-                        done = true;
-                        break;
-                    }
-                    loopCount++;
-                    for (int i = 0; i < countRecords; i++) {
-                        tempText = new Text(recordsKeys.get(i));
-                        partition = tree.getPartition(tempText);
-                        localCount = countsMap.get(partition);
-                        countsMap.put(partition, (localCount + 1) % block_size);
-
-                        keyMap.get(partition).set(localCount, recordsKeys.get(i));
-                        dataMap.get(partition).set(localCount, recordsVals.get(i));
-                        if (localCount == (block_size - 1)) {
-                            keyedContent = new KeyedContent(keyMap.get(partition), dataMap.get(partition),
-                                    MessageType.MULTI_FIXED_BYTE, MessageType.MULTI_FIXED_BYTE);
-                            while (!partitionOp.send(task, keyedContent, 0, partition)) {
-                                // lets wait a litte and try again
-                                try {
-                                    Thread.sleep(1);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, "Failed to read the file: " + id, e);
-                throw new RuntimeException(e);
+            Thread sender = new Thread(new Sender(), "sender-" + task);
+            sender.start();
+            // the input is partitioned by several threads, each packing its own blocks
+            Packer[] packers = new Packer[loaderThreads];
+            for (int i = 0; i < loaderThreads; i++) {
+                packers[i] = new Packer();
             }
+            long records = DataLoader.stream(id, inputFile, packers, READ_BUFFER_RECORDS);
 
             /*
             * The following logic checkes whether there are messages which are not yet transmitted to the
-            * corresponding nodes. If the message stacks are not filled with the expected buffered content
-            * and if all the messages are already read, the messages left in these buffering queues are being
-            * sent to their destinations. This part must be abstracted in the communication layer.
+            * corresponding nodes. The records left in the blocks are sent to their destinations along
+            * with the last flag, an empty block is sent if there are none.
             * **/
-
+            Packer last = packers[0];
+            for (int i = 1; i < packers.length; i++) {
+                packers[i].flush();
+            }
+            last.sendBlock(task, 0);
 
             //Send messages to all tasks to let them know that the messages are finished
 
@@ -502,30 +449,7 @@ public class TeraSortApp implements IContainer {
                     if (i == task) {
                         continue;
                     }
-                    int tempCount = countsMap.get(i);
-                    if (tempCount == 0 || tempCount == (block_size - 1)) {
-                        keyList = new ArrayList<>();
-                        dataList = new ArrayList<>();
-                        keyList.add(new byte[10]);
-                        dataList.add(new byte[90]);
-                        keyedContent = new KeyedContent(keyList, dataList,
-                                MessageType.MULTI_FIXED_BYTE, MessageType.MULTI_FIXED_BYTE);
-                        while (!partitionOp.send(task, keyedContent, flags, i)) {
-                            // lets wait a litte and try again
-                            partitionOp.progress();
-                        }
-                    } else {
-                        keyList = keyMap.get(i).subList(0, tempCount);
-                        dataList = dataMap.get(i).subList(0, tempCount);
-                        keyedContent = new KeyedContent(keyList, dataList,
-                                MessageType.MULTI_FIXED_BYTE, MessageType.MULTI_FIXED_BYTE);
-                        while (!partitionOp.send(task, keyedContent, flags, i)) {
-                            // lets wait a litte and try again
-                            partitionOp.progress();
-                        }
-                    }
-
-
+                    last.sendBlock(i, flags);
                 }
 
             }else if(this.partitionType.equals(PartitionType.RANDOM.toString())){
@@ -539,14 +463,135 @@ public class TeraSortApp implements IContainer {
                 TODO: Implement ring partition mechanism
                 * */
             }
+            try {
+                sendQueue.put(end);
+                sender.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            metrics.record(StageMetrics.Stage.PARTITION_SEND, sendStart, records,
+                    records * Record.RECORD_LENGTH);
+
+        }
+
+        /**
+         * A block of records to send to a destination
+         */
+        private class Block {
+            private int destination;
+            private int flags;
+            private KeyedContent content;
+
+            Block(int destination, int flags, KeyedContent content) {
+                this.destination = destination;
+                this.flags = flags;
+                this.content = content;
+            }
+        }
+
+        /**
+         * Sends the blocks in the order they are queued, so the last blocks go after the others
+         */
+        private class Sender implements Runnable {
+            @Override
+            public void run() {
+                try {
+                    Block block;
+                    while ((block = sendQueue.take()) != end) {
+                        progressEngine.send(partitionOp, task, block.content, block.flags,
+                                block.destination);
+                    }
+                } catch (InterruptedException e) {
+                    LOG.log(Level.SEVERE, "Interrupted while sending", e);
+                }
+            }
+        }
+
+        /**
+         * Partitions the records of the buffers given to one loader thread. Records for
+         * each destination are packed in to one key block and one value block.
+         */
+        private class Packer implements DataLoader.RangeScanner {
+            private byte[][] keyBlocks = new byte[NO_OF_TASKS][];
+            private byte[][] dataBlocks = new byte[NO_OF_TASKS][];
+            private int[] counts = new int[NO_OF_TASKS];
+            private byte[] key = new byte[Record.KEY_SIZE];
+            private Text tempText = new Text();
+            Packer() {
+                for (int i = 0; i < NO_OF_TASKS; i++) {
+                    keyBlocks[i] = new byte[block_size * Record.KEY_SIZE];
+                    dataBlocks[i] = new byte[block_size * Record.DATA_SIZE];
+                }
+            }
+
+            @Override
+            public void scan(ByteBuffer records, long first, int count) {
+                int partition;
+                int localCount;
+                // the source task plus the position of the record in the input spreads the hot
+                // keys over their partitions, whichever loader thread gets the record
+                int sequence = (int) first + task;
+                for (int i = 0; i < count; i++) {
+                    records.get(key, 0, Record.KEY_SIZE);
+                    tempText.set(key, 0, Record.KEY_SIZE);
+                    partition = tree.getPartition(tempText, sequence++);
+                    localCount = counts[partition];
+                    System.arraycopy(key, 0, keyBlocks[partition],
+                            localCount * Record.KEY_SIZE, Record.KEY_SIZE);
+                    records.get(dataBlocks[partition], localCount * Record.DATA_SIZE, Record.DATA_SIZE);
+                    counts[partition] = localCount + 1;
+                    if (counts[partition] == block_size) {
+                        sendBlock(partition, 0);
+                    }
+                }
+            }
 
+            /**
+             * Send all the records left in the blocks
+             */
+            void flush() {
+                for (int i = 0; i < NO_OF_TASKS; i++) {
+                    if (counts[i] > 0) {
+                        sendBlock(i, 0);
+                    }
+                }
+            }
+
+            /**
+             * Queue the records packed for the destination and start a new block for it. The sent
+             * blocks are owned by the communication layer until they are serialized.
+             */
+            void sendBlock(int destination, int flags) {
+                int count = counts[destination];
+                if (count == 0 && flags == 0) {
+                    return;
+                }
+                byte[] keys = keyBlocks[destination];
+                byte[] data = dataBlocks[destination];
+                if (count < block_size) {
+                    keys = Arrays.copyOf(keys, count * Record.KEY_SIZE);
+                    data = Arrays.copyOf(data, count * Record.DATA_SIZE);
+                } else {
+                    keyBlocks[destination] = new byte[block_size * Record.KEY_SIZE];
+                    dataBlocks[destination] = new byte[block_size * Record.DATA_SIZE];
+                }
+                counts[destination] = 0;
+                KeyedContent keyedContent = new KeyedContent(Collections.singletonList(keys),
+                        Collections.singletonList(data), MessageType.MULTI_FIXED_BYTE,
+                        MessageType.MULTI_FIXED_BYTE);
+                try {
+                    sendQueue.put(new Block(destination, flags, keyedContent));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
         }
     }
 
     private class SamplesCollectionReceiver implements GatherBatchReceiver {
         // lets keep track of the messages
         // for each task we need to keep track of incoming messages
-        private List<Record[]> dataList;
+        private List<byte[]> dataList;
 
         private int count = 0;
 
@@ -554,7 +599,7 @@ public class TeraSortApp implements IContainer {
 
         @Override
         public void init(Config cfg, DataFlowOperation op, Map<Integer, List<Integer>> expectedIds) {
-            dataList = new ArrayList<Record[]>();
+            dataList = new ArrayList<byte[]>();
         }
 
         @Override
@@ -569,15 +614,15 @@ public class TeraSortApp implements IContainer {
                 if (temp instanceof List) {
                     List<Object> datalist = (List<Object>) temp;
                     for (Object o : datalist) {
-                        Record[] data = (Record[]) o;
-                        dataList.add(data);
+                        dataList.add((byte[]) o);
                     }
                 } else {
-                    dataList.add((Record[]) temp);
+                    dataList.add((byte[]) temp);
                 }
             }
             sampleData = dataList;
-            samplingDone = true;
+            samplingDone.countDown();
+            progressEngine.wakeup();
             LOG.info("Gather results (only the first int of each array)"
                     + sampleData.size());
         }
@@ -594,31 +639,56 @@ public class TeraSortApp implements IContainer {
 
         @Override
         public boolean onMessage(int source, int path, int target, int flags, Object object) {
-            selectedKeys = (Text[]) object;
-//            byte[] byteKeys = new byte[Record.KEY_SIZE * selectedKeys.length];
-            //calculate the tire
-//            for (int i = 0; i < selectedKeys.length; i++) {
-//            System.arraycopy(selectedKeys[i].getBytes(), 0,
-//                    byteKeys, i * Record.KEY_SIZE, Record.KEY_SIZE);
-//            }
-            int noOfPartitions = NO_OF_TASKS - 1;
-            if (selectedKeys.length != noOfPartitions) {
-                String msg = "Selected keys( " + selectedKeys.length
+            selectedKeys = (byte[]) object;
+            int noOfPartitions = NO_OF_TASKS * Math.max(1, bucketsPerTask) - 1;
+            if (selectedKeys.length != noOfPartitions * Record.KEY_SIZE) {
+                String msg = "Selected keys( " + selectedKeys.length / Record.KEY_SIZE
                         + " ) generated is not equal to: " + noOfPartitions;
                 LOG.log(Level.SEVERE, msg);
                 throw new RuntimeException(msg);
             }
-            // now build the tree
-//            Text[] partitions = new Text[noOfPartitions];
-//            for (int i = 0; i < noOfPartitions; i++) {
-//                Text t = new Text();
-//                t.set(byteKeys, i * Record.KEY_SIZE, Record.KEY_SIZE);
-//
-//                partitions[i] = t;
-//            }
-            PartitionTree.TrieNode root = PartitionTree.buildTrie(selectedKeys, 0, selectedKeys.length, new Text(), 2);
+            Text[] splitters = DataPartitioner.toText(partitionKeys(selectedKeys), 0, NO_OF_TASKS - 1);
+            PartitionTree.TrieNode root = PartitionTree.buildTrie(splitters, 0, splitters.length, new Text(), 2);
             tree = new PartitionTree(root);
-            broadcastDone = true;
+            broadcastDone.countDown();
+            progressEngine.wakeup();
+            return true;
+        }
+
+        @Override
+        public void progress() {
+        }
+    }
+
+    /**
+     * Collects the reports of the tasks that the partition is complete on their worker
+     */
+    private class DoneCollectionReceiver implements GatherBatchReceiver {
+        @Override
+        public void init(Config cfg, DataFlowOperation op, Map<Integer, List<Integer>> expectedIds) {
+        }
+
+        @Override
+        public void receive(int target, Iterator<Object> it) {
+            while (it.hasNext()) {
+                it.next();
+            }
+            doneGathered.countDown();
+            progressEngine.wakeup();
+        }
+
+        public void progress() {
+        }
+    }
+
+    private class DoneReceive implements MessageReceiver {
+        public void init(Config cfg, DataFlowOperation op, Map<Integer, List<Integer>> expectedIds) {
+        }
+
+        @Override
+        public boolean onMessage(int source, int path, int target, int flags, Object object) {
+            allDone.countDown();
+            progressEngine.wakeup();
             return true;
         }
 
@@ -634,6 +704,8 @@ public class TeraSortApp implements IContainer {
         int count = 0;
         long adddatatime = 0;
         FSMergeSorter sorter;
+        // sorts the records in memory if the buckets are used
+        BucketSorter bucketSorter;
         KeyedContent temp;
         List<ImmutablePair<byte[], byte[]>> tempList;
 
@@ -642,7 +714,25 @@ public class TeraSortApp implements IContainer {
             finished = new ConcurrentHashMap<>();
             //TODO need to remove last record otherwise valsort will not show correct order
             outputFile = Paths.get(outputFolder, filePrefix + Integer.toString(id)).toString();
-            sorter = new FSMergeSorter(id, maxRecordsInMemory, outputFolder, tmpFolder);
+            if (bucketsPerTask > 0) {
+                // the tasks of this worker are consecutive, so are the keys of their buckets
+                int first = id * noOfTasksPerExecutor * bucketsPerTask;
+                Text[] bucketKeys = DataPartitioner.toText(selectedKeys, first,
+                        noOfTasksPerExecutor * bucketsPerTask - 1);
+                long bucketMemory = bucketMemoryMB > 0 ? (long) bucketMemoryMB << 20
+                        : Runtime.getRuntime().maxMemory() / 2;
+                bucketSorter = new BucketSorter(id, outputFolder, bucketKeys,
+                        bucketMemory / Record.RECORD_LENGTH, new BucketSorter.SpillFactory() {
+                            @Override
+                            public FSMergeSorter create() {
+                                return createSorter();
+                            }
+                        });
+                bucketSorter.setMetrics(metrics);
+            } else {
+                sorter = createSorter();
+                sorter.setMetrics(metrics);
+            }
 
             for (Integer integer : expectedIds.keySet()) {
                 Map<Integer, Boolean> perTarget = new ConcurrentHashMap<>();
@@ -653,28 +743,42 @@ public class TeraSortApp implements IContainer {
             }
         }
 
+        /**
+         * The sorter spilling the records to disk and merging them
+         */
+        private FSMergeSorter createSorter() {
+            LMDBSpillStore store = null;
+            if ("lmdb".equals(spillStore)) {
+                store = new LMDBSpillStore(tmpFolder, id, (long) lmdbMapSizeGB << 30);
+            }
+            return new FSMergeSorter(id, maxRecordsInMemory, outputFolder, tmpFolder, spillWorkers,
+                    compressSpills, store);
+        }
+
         @Override
         public boolean onMessage(int source, int path, int target, int flags, Object object) {
             // add the object to the map
             //LOG.info("On message");
             long stime1 = System.currentTimeMillis();
+            // more messages are likely to follow
+            progressEngine.wakeup();
             if ((flags & MessageFlags.FLAGS_LAST) == MessageFlags.FLAGS_LAST) {
                 if (object instanceof KeyedContent) {
                     temp = (KeyedContent) object;
-                    sorter.addData(temp);
+                    addData(temp);
                 } else if (object instanceof List) {
                     tempList = (List<ImmutablePair<byte[], byte[]>>) object;
-                    sorter.addData(tempList);
+                    addData(tempList);
                 }
                 finished.get(target).put(source, true);
             } else {
                 if (object instanceof KeyedContent) {
                     temp = (KeyedContent) object;
-                    sorter.addData(temp);
+                    addData(temp);
 
                 } else if (object instanceof List) {
                     tempList = (List<ImmutablePair<byte[], byte[]>>) object;
-                    sorter.addData(tempList);
+                    addData(tempList);
                 }
             }
             adddatatime += System.currentTimeMillis() - stime1;
@@ -692,13 +796,20 @@ public class TeraSortApp implements IContainer {
                     new Thread(new Runnable() {
                         @Override
                         public void run() {
-                            sorter.doneReceive();
-                            long stime = System.currentTimeMillis();
-                            long sortTime = sorter.merge();
+                            long stime;
+                            long sortTime = 0;
+                            if (bucketSorter != null) {
+                                stime = System.currentTimeMillis();
+                                bucketSorter.sortAndSave();
+                            } else {
+                                sorter.doneReceive();
+                                stime = System.currentTimeMillis();
+                                sortTime = sorter.merge();
+                            }
                             long etime = System.currentTimeMillis();
                             System.out.println("Sort time " + id + " : " + (sortTime + (etime - stime)));
                             System.out.println("Add Data time " + id + " : " + adddatatime);
-                            reduceDone = true;
+                            reduceDone.countDown();
                         }
                     }).start();
 
@@ -712,19 +823,19 @@ public class TeraSortApp implements IContainer {
             return true;
         }
 
-        public void save(Record[] records, String outFileName) {
-            DataOutputStream os;
-            try {
-                os = new DataOutputStream(new FileOutputStream(outFileName));
-                for (int i = 0; i < records.length; i++) {
-                    Record r = records[i];
-                    os.write(r.getKey().getBytes(), 0, Record.KEY_SIZE);
-                    os.write(r.getText().getBytes(), 0, Record.DATA_SIZE);
-                }
-                os.close();
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, "Failed write to disc", e);
-                throw new RuntimeException(e);
+        private void addData(KeyedContent content) {
+            if (bucketSorter != null) {
+                bucketSorter.addData(content);
+            } else {
+                sorter.addData(content);
+            }
+        }
+
+        private void addData(List<ImmutablePair<byte[], byte[]>> pairs) {
+            if (bucketSorter != null) {
+                bucketSorter.addData(pairs);
+            } else {
+                sorter.addData(pairs);
             }
         }
 
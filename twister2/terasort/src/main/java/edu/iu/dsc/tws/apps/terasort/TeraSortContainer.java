@@ -400,7 +400,7 @@ public class TeraSortContainer implements IContainer {
                 startTime = System.nanoTime();
                 String inputFile = Paths.get(inputFolder, filePrefix
                         + workerLocalID + "_" + Integer.toString(localId)).toString();
-                List<Record> records = DataLoader.load(id, inputFile, partitionSamplesPerNode);
+                List<Record> records = DataLoader.sample(id, inputFile, partitionSamplesPerNode);
                 Record[] partitionRecords = new Record[partitionSamplesPerNode];
                 for (int i = 0; i < partitionSamplesPerNode; i++) {
                     partitionRecords[i] = records.get(i);
@@ -50,8 +50,15 @@ public final class TeraSortJob {
         options.addOption("tasksPerNode", true, "Tasks per Node");
         options.addOption("recordLimit", true, "recordLimit");
         options.addOption("maxRecordsInMemory", true, "maxRecordsInMemory");
+        options.addOption("spillWorkers", true, "Number of threads sorting and saving records to disk");
+        options.addOption("loaderThreads", true, "Number of threads reading and partitioning the input");
+        options.addOption("compressSpills", false, "Compress the records saved to disk while sorting");
+        options.addOption("spillStore", true, "Where to save the records while sorting, file or lmdb");
+        options.addOption("lmdbMapSizeGB", true, "Largest size of the lmdb spill store in GB");
         //options.addOption("maxRecordsInQueue", true, "maxRecordsInQueue");
         options.addOption("tmpFolder", true, "tmpFolder");
+        options.addOption("metricsFolder", true, "Folder to write the stage metrics of each worker");
+        options.addOption("bucketsPerTask", true, "Sort the records in memory in this many buckets per task");
         options.addOption("output", true, "Output directory");
         options.addOption("partitionSampleNodes", true, "Number of nodes to choose partition samples");
         options.addOption("partitionSamplesPerNode",
@@ -79,8 +86,27 @@ public final class TeraSortJob {
         jobConfig.put("tasksPerNode", cmd.getOptionValue("tasksPerNode"));
         jobConfig.put("recordLimit", cmd.getOptionValue("recordLimit"));
         jobConfig.put("maxRecordsInMemory", cmd.getOptionValue("maxRecordsInMemory"));
+        if (cmd.hasOption("spillWorkers")) {
+            jobConfig.put("spillWorkers", cmd.getOptionValue("spillWorkers"));
+        }
+        if (cmd.hasOption("loaderThreads")) {
+            jobConfig.put("loaderThreads", cmd.getOptionValue("loaderThreads"));
+        }
+        jobConfig.put("compressSpills", cmd.hasOption("compressSpills"));
+        if (cmd.hasOption("spillStore")) {
+            jobConfig.put("spillStore", cmd.getOptionValue("spillStore"));
+        }
+        if (cmd.hasOption("lmdbMapSizeGB")) {
+            jobConfig.put("lmdbMapSizeGB", cmd.getOptionValue("lmdbMapSizeGB"));
+        }
         //jobConfig.put("maxRecordsInQueue", cmd.getOptionValue("maxRecordsInQueue"));
         jobConfig.put("tmpFolder", cmd.getOptionValue("tmpFolder"));
+        if (cmd.hasOption("metricsFolder")) {
+            jobConfig.put("metricsFolder", cmd.getOptionValue("metricsFolder"));
+        }
+        if (cmd.hasOption("bucketsPerTask")) {
+            jobConfig.put("bucketsPerTask", cmd.getOptionValue("bucketsPerTask"));
+        }
         jobConfig.put("partitionSampleNodes",
                 cmd.getOptionValue("partitionSampleNodes"));
         jobConfig.put("partitionSamplesPerNode",
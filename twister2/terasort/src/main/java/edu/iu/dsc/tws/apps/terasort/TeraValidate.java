@@ -0,0 +1,269 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort;
+
+import edu.iu.dsc.tws.apps.terasort.utils.DataLoader;
+import edu.iu.dsc.tws.apps.terasort.utils.Record;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Validates the output of terasort, the rank_saveFileIndex files of the output folder.
+ * The files are mapped and checked in parallel for sorted order, then the last key of every
+ * file is checked against the first key of the next one, across ranks as well. The sum of
+ * the CRC32 of the records does not depend on their order, so it is compared with the
+ * same sum over the input files to make sure no record is lost, duplicated or changed.
+ */
+public final class TeraValidate {
+    private static final Logger LOG = Logger.getLogger(TeraValidate.class.getName());
+    // largest region of a file mapped at once
+    private static final int MAX_REGION_RECORDS = (1 << 30) / Record.RECORD_LENGTH;
+
+    private TeraValidate() {
+    }
+
+    /**
+     * What we know about an output file after scanning it
+     */
+    private static class FileSummary {
+        private File file;
+        private int rank;
+        private int index;
+        private long records;
+        private byte[] firstKey;
+        private byte[] lastKey;
+        // number of records smaller than the previous one and the position of the first
+        private long unsorted;
+        private long firstUnsorted = -1;
+        private long checksum;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("output", true, "Output directory");
+        options.addOption("input", true, "Input directory");
+        options.addOption("filePrefix", true, "Prefix of the input files");
+        options.addOption("threads", true, "Number of threads");
+        CommandLineParser commandLineParser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = commandLineParser.parse(options, args);
+        } catch (ParseException e) {
+            LOG.log(Level.SEVERE, "Failed to read the options", e);
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("program", options);
+            throw new RuntimeException(e);
+        }
+        int threads = Integer.parseInt(cmd.getOptionValue("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        boolean valid = validate(cmd.getOptionValue("output"), cmd.getOptionValue("input"),
+                cmd.getOptionValue("filePrefix"), threads);
+        if (valid) {
+            LOG.info("Output is valid");
+        } else {
+            LOG.severe("Output is NOT valid");
+        }
+        System.exit(valid ? 0 : 1);
+    }
+
+    /**
+     * Validate the output
+     *
+     * @param outputFolder folder with the rank_saveFileIndex files
+     * @param inputFolder folder with the input files, the checksum is not compared if null
+     * @param filePrefix prefix of the input files
+     * @param threads number of threads
+     * @return true if the output is valid
+     */
+    public static boolean validate(String outputFolder, String inputFolder, String filePrefix,
+                                   int threads) {
+        List<FileSummary> files = new ArrayList<>();
+        File[] outputs = new File(outputFolder).listFiles();
+        if (outputs == null) {
+            LOG.severe("No output folder " + outputFolder);
+            return false;
+        }
+        for (File f : outputs) {
+            String[] parts = f.getName().split("_");
+            if (parts.length == 2 && parts[0].matches("\\d+") && parts[1].matches("\\d+")) {
+                FileSummary summary = new FileSummary();
+                summary.file = f;
+                summary.rank = Integer.parseInt(parts[0]);
+                summary.index = Integer.parseInt(parts[1]);
+                files.add(summary);
+            }
+        }
+        files.sort(new Comparator<FileSummary>() {
+            @Override
+            public int compare(FileSummary a, FileSummary b) {
+                return a.rank != b.rank ? Integer.compare(a.rank, b.rank)
+                        : Integer.compare(a.index, b.index);
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final FileSummary summary : files) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        scan(summary);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to validate " + outputFolder, e);
+        } finally {
+            executor.shutdown();
+        }
+
+        boolean valid = true;
+        long records = 0;
+        long checksum = 0;
+        FileSummary previous = null;
+        for (FileSummary summary : files) {
+            records += summary.records;
+            checksum += summary.checksum;
+            if (summary.unsorted > 0) {
+                LOG.severe(String.format("%s has %d records out of order, first at %d",
+                        summary.file, summary.unsorted, summary.firstUnsorted));
+                valid = false;
+            }
+            if (summary.records == 0) {
+                continue;
+            }
+            if (previous != null && compare(previous.lastKey, summary.firstKey) > 0) {
+                LOG.severe(String.format("Last key of %s is larger than the first key of %s",
+                        previous.file, summary.file));
+                valid = false;
+            }
+            previous = summary;
+        }
+        LOG.info(String.format("%d output files with %d records and checksum %x",
+                files.size(), records, checksum));
+
+        if (inputFolder != null) {
+            long[] input = inputChecksum(inputFolder, filePrefix, threads);
+            LOG.info(String.format("Input has %d records and checksum %x", input[0], input[1]));
+            if (input[0] != records || input[1] != checksum) {
+                LOG.severe("The output records do not match the input");
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private static void scan(FileSummary summary) {
+        byte[] record = new byte[Record.RECORD_LENGTH];
+        byte[] previous = new byte[Record.KEY_SIZE];
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(summary.file, "r")) {
+            FileChannel channel = file.getChannel();
+            long total = channel.size() / Record.RECORD_LENGTH;
+            for (long start = 0; start < total; start += MAX_REGION_RECORDS) {
+                int count = (int) Math.min(MAX_REGION_RECORDS, total - start);
+                ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start * Record.RECORD_LENGTH, (long) count * Record.RECORD_LENGTH);
+                for (int i = 0; i < count; i++) {
+                    region.get(record);
+                    long position = start + i;
+                    if (position == 0) {
+                        summary.firstKey = Arrays.copyOf(record, Record.KEY_SIZE);
+                    } else if (compare(previous, record) > 0) {
+                        if (summary.unsorted == 0) {
+                            summary.firstUnsorted = position;
+                        }
+                        summary.unsorted++;
+                    }
+                    System.arraycopy(record, 0, previous, 0, Record.KEY_SIZE);
+                    crc.reset();
+                    crc.update(record, 0, Record.RECORD_LENGTH);
+                    summary.checksum += crc.getValue();
+                }
+            }
+            summary.records = total;
+            summary.lastKey = previous;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + summary.file, e);
+        }
+    }
+
+    /**
+     * @return number of records and the checksum of the input files
+     */
+    private static long[] inputChecksum(String inputFolder, String filePrefix, int threads) {
+        final AtomicLong checksum = new AtomicLong();
+        long records = 0;
+        File[] inputs = new File(inputFolder).listFiles();
+        if (inputs == null) {
+            throw new RuntimeException("No input folder " + inputFolder);
+        }
+        DataLoader.RangeScanner[] scanners = new DataLoader.RangeScanner[threads];
+        for (int i = 0; i < threads; i++) {
+            scanners[i] = new DataLoader.RangeScanner() {
+                private byte[] record = new byte[Record.RECORD_LENGTH];
+                private CRC32 crc = new CRC32();
+
+                @Override
+                public void scan(ByteBuffer buffer, long first, int count) {
+                    long sum = 0;
+                    for (int j = 0; j < count; j++) {
+                        buffer.get(record);
+                        crc.reset();
+                        crc.update(record, 0, Record.RECORD_LENGTH);
+                        sum += crc.getValue();
+                    }
+                    checksum.addAndGet(sum);
+                }
+            };
+        }
+        for (File f : inputs) {
+            if (filePrefix == null || f.getName().startsWith(filePrefix)) {
+                records += DataLoader.scan(0, f.getPath(), scanners);
+            }
+        }
+        return new long[]{records, checksum.get()};
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Record.KEY_SIZE; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
+}
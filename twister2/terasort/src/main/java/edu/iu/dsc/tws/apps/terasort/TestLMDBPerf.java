@@ -12,6 +12,7 @@ import org.lmdbjava.*;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -39,7 +40,9 @@ public class TestLMDBPerf {
     public Dbi<ByteBuffer> db;
 
     public static void main(String[] args) {
-        Path dataPath = new Path("/home/pulasthi/work/twister2/lmdbPerf");
+        String folder = args.length > 0 ? args[0]
+                : Paths.get(System.getProperty("java.io.tmpdir"), "lmdbPerf").toString();
+        Path dataPath = new Path(folder);
         LMDBMemoryManager lmdbMemoryManager = new LMDBMemoryManager(dataPath);
         int opertionID = (int) System.currentTimeMillis();
         OperationMemoryManager operationMemoryManager = lmdbMemoryManager.addOperation(opertionID, DataMessageType.BYTE);
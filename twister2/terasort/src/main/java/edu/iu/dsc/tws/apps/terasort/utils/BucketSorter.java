@@ -0,0 +1,296 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import edu.iu.dsc.tws.comms.mpi.io.KeyedContent;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts the records of a worker which fit in memory without merging. The received records
+ * are put straight in to buckets by the sub splitters of the key range of the worker, so
+ * every key of a bucket is smaller than the keys of the next one. When all the records are
+ * received the buckets are sorted independently in parallel and written in order, each as
+ * soon as it and the ones before it are sorted. The buckets are kept in large direct chunks.
+ * If the chunks would take more than the memory limit, or a bucket more records than can be
+ * sorted in arrays, the records are handed over to a FSMergeSorter which spills them to disk
+ * and merges them instead.
+ */
+public class BucketSorter {
+  private static final Logger LOG = Logger.getLogger(BucketSorter.class.getName());
+  // records in each chunk of a bucket
+  private static final int CHUNK_RECORDS = 1 << 14;
+  // most records of a bucket, so the keys of a bucket fit in one array for sorting
+  private static final int MAX_BUCKET_RECORDS =
+      (Integer.MAX_VALUE - 8) / Record.KEY_SIZE / CHUNK_RECORDS * CHUNK_RECORDS;
+
+  /**
+   * Creates the sorter the records are handed over to if they do not fit in memory
+   */
+  public interface SpillFactory {
+    FSMergeSorter create();
+  }
+
+  private int rank;
+  private String outFolder;
+  // sub splitters, a key goes to the bucket of the first one not smaller than it
+  private Text[] splitters;
+  private long[] splitPrefixes;
+  // chunks of the records of each bucket, in the order received
+  private List<List<RecordBuffer>> buckets = new ArrayList<>();
+  private long records = 0;
+  // records the allocated chunks can hold and the most they may hold
+  private long capacity = 0;
+  private long maxRecords;
+  private SpillFactory spillFactory;
+  // the sorter taking the records once they do not fit in memory
+  private FSMergeSorter spill;
+  // number of records in each window of the output file
+  private int writeWindow = 1 << 16;
+  private StageMetrics metrics;
+
+  /**
+   * @param rank rank of the worker
+   * @param outFolder the sorted records are written to rank_0 in this folder
+   * @param splitters sorted sub splitters of the key range of this worker, the buckets are one
+   * more than the splitters
+   * @param maxRecords the most records held in memory
+   * @param spillFactory creates the sorter used if the records do not fit in the buckets
+   */
+  public BucketSorter(int rank, String outFolder, Text[] splitters, long maxRecords,
+                      SpillFactory spillFactory) {
+    this.rank = rank;
+    this.maxRecords = maxRecords;
+    this.spillFactory = spillFactory;
+    this.outFolder = outFolder;
+    this.splitters = splitters;
+    this.splitPrefixes = new long[splitters.length];
+    for (int i = 0; i < splitters.length; i++) {
+      splitPrefixes[i] = Record.prefix(splitters[i]);
+    }
+    for (int i = 0; i <= splitters.length; i++) {
+      buckets.add(new ArrayList<RecordBuffer>());
+    }
+    this.metrics = new StageMetrics(rank);
+  }
+
+  public void setMetrics(StageMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Add the keys and values of the content. Each element may hold a block of
+   * packed keys and the matching values.
+   */
+  public void addData(KeyedContent data) {
+    long start = System.nanoTime();
+    long total = 0;
+    @SuppressWarnings("unchecked")
+    List<byte[]> keys = (List<byte[]>) data.getSource();
+    @SuppressWarnings("unchecked")
+    List<byte[]> values = (List<byte[]>) data.getObject();
+    for (int i = 0; i < keys.size(); i++) {
+      byte[] k = keys.get(i);
+      byte[] v = values.get(i);
+      int count = k.length / Record.KEY_SIZE;
+      for (int j = 0; j < count; j++) {
+        add(k, j * Record.KEY_SIZE, v, j * Record.DATA_SIZE);
+      }
+      total += count;
+    }
+    metrics.record(StageMetrics.Stage.PARTITION_RECEIVE, start, total,
+        total * Record.RECORD_LENGTH);
+  }
+
+  public void addData(List<ImmutablePair<byte[], byte[]>> data) {
+    long start = System.nanoTime();
+    for (ImmutablePair<byte[], byte[]> pair : data) {
+      add(pair.getKey(), 0, pair.getValue(), 0);
+    }
+    metrics.record(StageMetrics.Stage.PARTITION_RECEIVE, start, data.size(),
+        (long) data.size() * Record.RECORD_LENGTH);
+  }
+
+  private void add(byte[] keys, int keyOffset, byte[] values, int valueOffset) {
+    if (spill != null) {
+      spill.add(keys, keyOffset, values, valueOffset);
+      return;
+    }
+    List<RecordBuffer> chunks = buckets.get(bucket(keys, keyOffset));
+    RecordBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (last == null || last.isFull()) {
+      if (capacity + CHUNK_RECORDS > maxRecords
+          || (long) chunks.size() * CHUNK_RECORDS >= MAX_BUCKET_RECORDS) {
+        startSpill();
+        spill.add(keys, keyOffset, values, valueOffset);
+        return;
+      }
+      last = RecordBuffer.inOrder(CHUNK_RECORDS);
+      capacity += CHUNK_RECORDS;
+      chunks.add(last);
+    }
+    last.add(keys, keyOffset, values, valueOffset);
+    records++;
+  }
+
+  /**
+   * Hand over the records received so far to the spilling sorter and let the chunks go
+   */
+  private void startSpill() {
+    LOG.info(String.format("Rank %d spilling after %d records, the buckets hold at most %d",
+        rank, records, maxRecords));
+    spill = spillFactory.create();
+    spill.setMetrics(metrics);
+    for (int b = 0; b < buckets.size(); b++) {
+      for (RecordBuffer chunk : buckets.get(b)) {
+        spill.add(chunk.records(), chunk.size() * Record.RECORD_LENGTH);
+      }
+      buckets.set(b, null);
+    }
+  }
+
+  /**
+   * Find the bucket of a key with a binary search of the splitters
+   */
+  private int bucket(byte[] keys, int offset) {
+    long prefix = 0;
+    for (int i = 0; i < 8; i++) {
+      prefix = (prefix << 8) | (keys[offset + i] & 0xff);
+    }
+    int low = 0;
+    int high = splitters.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compare(mid, prefix, keys, offset) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int compare(int splitter, long prefix, byte[] keys, int offset) {
+    long split = splitPrefixes[splitter];
+    if (split != prefix) {
+      return Long.compareUnsigned(split, prefix);
+    }
+    byte[] s = splitters[splitter].getBytes();
+    for (int i = 8; i < Record.KEY_SIZE; i++) {
+      int x = s[i] & 0xff;
+      int y = keys[offset + i] & 0xff;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Sort the buckets in parallel and write them in order
+   */
+  public void sortAndSave() {
+    if (spill != null) {
+      spill.doneReceive();
+      spill.merge();
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    long sortStart = System.nanoTime();
+    // only a window of buckets is sorted ahead of the writer, so the keys and indexes of
+    // the sorts are held for a few buckets at a time
+    int window = ForkJoinPool.commonPool().getParallelism() + 1;
+    List<ForkJoinTask<int[]>> sorted = new ArrayList<>();
+    for (int b = 0; b < Math.min(window, buckets.size()); b++) {
+      sorted.add(submitSort(buckets.get(b)));
+    }
+
+    String outFileName = Paths.get(outFolder, rank + "_0").toString();
+    ExecutorService flusher = Executors.newSingleThreadExecutor();
+    try {
+      long writeStart = System.nanoTime();
+      WindowedWriter writer = new WindowedWriter(outFileName, records, writeWindow, flusher);
+      for (int b = 0; b < buckets.size(); b++) {
+        int[] index = sorted.get(b).join();
+        if (b + window < buckets.size()) {
+          sorted.add(submitSort(buckets.get(b + window)));
+        }
+        List<RecordBuffer> chunks = buckets.get(b);
+        for (int s : index) {
+          chunks.get(s / CHUNK_RECORDS).copyTo(s % CHUNK_RECORDS, writer.buffer());
+        }
+        // the bucket is written, let its memory go
+        buckets.set(b, null);
+        sorted.set(b, null);
+      }
+      writer.close();
+      long end = System.nanoTime();
+      metrics.record(StageMetrics.Stage.SORT, sortStart, end, end - sortStart, records,
+          records * Record.RECORD_LENGTH);
+      metrics.record(StageMetrics.Stage.WRITE, writeStart, end, writer.getWriteNanos(), records,
+          records * Record.RECORD_LENGTH);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Failed write to disc", e);
+      throw new RuntimeException(e);
+    } finally {
+      flusher.shutdown();
+    }
+    LOG.info(String.format("Rank %d sorted %d records in %d buckets in %d ms", rank, records,
+        splitters.length + 1, System.currentTimeMillis() - startTime));
+  }
+
+  private static ForkJoinTask<int[]> submitSort(final List<RecordBuffer> chunks) {
+    return ForkJoinPool.commonPool().submit(new Callable<int[]>() {
+      @Override
+      public int[] call() {
+        return sort(chunks);
+      }
+    });
+  }
+
+  /**
+   * Sort the records of a bucket. All the chunks but the last are full, so record s is slot
+   * s % CHUNK_RECORDS of chunk s / CHUNK_RECORDS.
+   *
+   * @return the records in sorted order
+   */
+  private static int[] sort(List<RecordBuffer> chunks) {
+    int size = 0;
+    for (RecordBuffer c : chunks) {
+      size += c.size();
+    }
+    byte[] keys = new byte[size * Record.KEY_SIZE];
+    int[] index = new int[size];
+    for (int c = 0; c < chunks.size(); c++) {
+      RecordBuffer chunk = chunks.get(c);
+      for (int i = 0; i < chunk.size(); i++) {
+        int s = c * CHUNK_RECORDS + i;
+        chunk.getKey(i, keys, s * Record.KEY_SIZE);
+        index[s] = s;
+      }
+    }
+    RadixSorter.sort(keys, index, size);
+    return index;
+  }
+}
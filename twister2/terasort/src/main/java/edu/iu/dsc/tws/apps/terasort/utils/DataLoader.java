@@ -15,9 +15,16 @@ import org.apache.hadoop.io.Text;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,6 +33,11 @@ import java.util.logging.Logger;
  */
 public final class DataLoader {
     private static final Logger LOG = Logger.getLogger(DataLoader.class.getName());
+    // largest range mapped at once, a mapping is limited to 2GB
+    private static final int MAX_RANGE_RECORDS = (1 << 30) / Record.RECORD_LENGTH;
+    // records in each window written by saveFast
+    private static final int WRITE_WINDOW_RECORDS = 1 << 16;
+
     public static List<Record> load(int rank, String inFileName) {
         List<Record> records = new ArrayList<>();
         byte[] buffer = new byte[Record.RECORD_LENGTH];
@@ -123,6 +135,212 @@ public final class DataLoader {
         }
     }
 
+    /**
+     * Read packed records in to the buffer, until it is full or the stream ends
+     *
+     * @param in the input
+     * @param records buffer for a multiple of Record.RECORD_LENGTH bytes
+     * @param rank
+     * @return number of records read
+     */
+    public static int load(DataInputStream in, byte[] records, int rank) {
+        int read = 0;
+        try {
+            while (read < records.length) {
+                int newRead = in.read(records, read, records.length - read);
+                if (newRead == -1) {
+                    break;
+                }
+                read += newRead;
+            }
+            if (read % Record.RECORD_LENGTH != 0) {
+                throw new EOFException("read past eof");
+            }
+            return read / Record.RECORD_LENGTH;
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to read the file: " + rank, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Scans a range of packed records of the input, mapped by scan or read by stream
+     */
+    public interface RangeScanner {
+        /**
+         * @param records the records starting at position 0
+         * @param first index in the file of the first record
+         * @param count number of records
+         */
+        void scan(ByteBuffer records, long first, int count);
+    }
+
+    /**
+     * A buffer of records read from a file and the index of its first record in the file
+     */
+    private static class Range {
+        private ByteBuffer records;
+        private long first;
+
+        Range(ByteBuffer records, long first) {
+            this.records = records;
+            this.first = first;
+        }
+    }
+
+    /**
+     * Map the file in record aligned ranges and scan them in parallel, one thread for every
+     * scanner. A scanner is only called by its own thread, so it can keep state without locking.
+     * The ranges are handed out in no particular order. This reads the files of TeraValidate,
+     * the sort reads its input with stream, which keeps the disk reads sequential.
+     *
+     * @param rank
+     * @param inFileName
+     * @param scanners the scanners
+     * @return number of records in the file
+     */
+    public static long scan(int rank, String inFileName, final RangeScanner[] scanners) {
+        try (RandomAccessFile file = new RandomAccessFile(inFileName, "r")) {
+            final FileChannel channel = file.getChannel();
+            final long totalRecords = channel.size() / Record.RECORD_LENGTH;
+            // a few ranges per thread so that the threads finish together
+            long minRanges = (totalRecords + MAX_RANGE_RECORDS - 1) / MAX_RANGE_RECORDS;
+            final int ranges = (int) Math.max(minRanges, Math.min(totalRecords, 4L * scanners.length));
+            final AtomicInteger nextRange = new AtomicInteger(0);
+            final Throwable[] errors = new Throwable[scanners.length];
+            Thread[] threads = new Thread[scanners.length];
+            for (int i = 0; i < scanners.length; i++) {
+                final int t = i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int range;
+                            while ((range = nextRange.getAndIncrement()) < ranges) {
+                                long start = totalRecords * range / ranges;
+                                long end = totalRecords * (range + 1) / ranges;
+                                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+                                        start * Record.RECORD_LENGTH, (end - start) * Record.RECORD_LENGTH);
+                                scanners[t].scan(records, start, (int) (end - start));
+                            }
+                        } catch (Throwable e) {
+                            errors[t] = e;
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (Throwable e : errors) {
+                if (e != null) {
+                    throw new IOException("Failed to scan " + inFileName, e);
+                }
+            }
+            return totalRecords;
+        } catch (IOException | InterruptedException e) {
+            LOG.log(Level.SEVERE, "Failed to read the file: " + rank, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read the file in order in to a pool of buffers and scan the buffers in parallel, one
+     * thread for every scanner. The calling thread reads, so the disk is kept busy while the
+     * scanners work on the buffers read before. A buffer goes back to the pool once it is
+     * scanned, so a scanner must copy out what it keeps.
+     *
+     * @param rank
+     * @param inFileName
+     * @param scanners the scanners
+     * @param bufferRecords number of records in each buffer
+     * @return number of records in the file
+     */
+    public static long stream(int rank, String inFileName, final RangeScanner[] scanners,
+                              int bufferRecords) {
+        // enough buffers for every scanner to have one while the reader fills the next ones
+        int buffers = 2 * scanners.length + 2;
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(buffers);
+        final BlockingQueue<Range> filled = new ArrayBlockingQueue<>(buffers + scanners.length);
+        final Range end = new Range(ByteBuffer.allocate(0), 0);
+        for (int i = 0; i < buffers; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferRecords * Record.RECORD_LENGTH));
+        }
+        final Throwable[] errors = new Throwable[scanners.length];
+        Thread[] threads = new Thread[scanners.length];
+        for (int i = 0; i < scanners.length; i++) {
+            final int t = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Range range;
+                        while ((range = filled.take()) != end) {
+                            ByteBuffer buffer = range.records;
+                            // after an error keep returning the buffers so the reader does not stop
+                            if (errors[t] == null) {
+                                try {
+                                    scanners[t].scan(buffer, range.first,
+                                            buffer.remaining() / Record.RECORD_LENGTH);
+                                } catch (Throwable e) {
+                                    errors[t] = e;
+                                }
+                            }
+                            buffer.clear();
+                            free.put(buffer);
+                        }
+                    } catch (InterruptedException e) {
+                        errors[t] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long totalRecords = 0;
+        try {
+            RandomAccessFile file = new RandomAccessFile(inFileName, "r");
+            FileChannel channel = file.getChannel();
+            long fileRecords = channel.size() / Record.RECORD_LENGTH;
+            while (totalRecords < fileRecords) {
+                ByteBuffer buffer = free.take();
+                int records = (int) Math.min(bufferRecords, fileRecords - totalRecords);
+                buffer.limit(records * Record.RECORD_LENGTH);
+                long position = totalRecords * Record.RECORD_LENGTH;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new EOFException("read past eof");
+                    }
+                    position += read;
+                }
+                buffer.flip();
+                filled.put(new Range(buffer, totalRecords));
+                totalRecords += records;
+            }
+            file.close();
+            for (int i = 0; i < scanners.length; i++) {
+                filled.put(end);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (Throwable e : errors) {
+                if (e != null) {
+                    throw new IOException("Failed to scan " + inFileName, e);
+                }
+            }
+            return totalRecords;
+        } catch (IOException | InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            LOG.log(Level.SEVERE, "Failed to read the file: " + rank, e);
+            throw new RuntimeException(e);
+        }
+    }
+
     public static List<Record> loadFrom(int rank, String inFileName) {
         List<Record> records = new ArrayList<>();
         byte[] buffer = new byte[Record.RECORD_LENGTH];
@@ -198,6 +416,92 @@ public final class DataLoader {
         }
     }
 
+    /**
+     * Sample records spread over the whole file. The file is divided in to numRecords equal
+     * strata and a record at a random position of every stratum is read, so sorted or
+     * clustered inputs give the same picture as random ones.
+     *
+     * @param rank
+     * @param inFileName
+     * @param numRecords number of samples, all the records are returned if the file is smaller
+     * @return the sampled records in file order
+     */
+    public static List<Record> sample(int rank, String inFileName, int numRecords) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(Record.RECORD_LENGTH);
+        Random random = new Random(rank);
+        try {
+            RandomAccessFile file = new RandomAccessFile(inFileName, "r");
+            FileChannel channel = file.getChannel();
+            long totalRecords = channel.size() / Record.RECORD_LENGTH;
+            int samples = (int) Math.min(numRecords, totalRecords);
+            for (int k = 0; k < samples; k++) {
+                long start = totalRecords * k / samples;
+                long end = totalRecords * (k + 1) / samples;
+                long position = (start + (long) (random.nextDouble() * (end - start)))
+                        * Record.RECORD_LENGTH;
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    int newRead = channel.read(buffer, position + buffer.position());
+                    if (newRead == -1) {
+                        throw new EOFException("read past eof");
+                    }
+                }
+                Text key = new Text();
+                Text value = new Text();
+                key.set(buffer.array(), 0, Record.KEY_SIZE);
+                value.set(buffer.array(), Record.KEY_SIZE, Record.DATA_SIZE);
+                records.add(new Record(key, value));
+            }
+            file.close();
+            return records;
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to read the file: " + rank, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sample the keys of records spread over the whole file like sample, but only the keys
+     * are read and they are packed in to one array
+     *
+     * @param rank
+     * @param inFileName
+     * @param numRecords number of samples, all the keys are returned if the file is smaller
+     * @return the sampled keys in file order, Record.KEY_SIZE bytes each
+     */
+    public static byte[] sampleKeys(int rank, String inFileName, int numRecords) {
+        Random random = new Random(rank);
+        try {
+            RandomAccessFile file = new RandomAccessFile(inFileName, "r");
+            FileChannel channel = file.getChannel();
+            long totalRecords = channel.size() / Record.RECORD_LENGTH;
+            int samples = (int) Math.min(numRecords, totalRecords);
+            byte[] keys = new byte[samples * Record.KEY_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(keys);
+            for (int k = 0; k < samples; k++) {
+                long start = totalRecords * k / samples;
+                long end = totalRecords * (k + 1) / samples;
+                long position = (start + (long) (random.nextDouble() * (end - start)))
+                        * Record.RECORD_LENGTH;
+                buffer.limit((k + 1) * Record.KEY_SIZE);
+                int read = 0;
+                while (buffer.hasRemaining()) {
+                    int newRead = channel.read(buffer, position + read);
+                    if (newRead == -1) {
+                        throw new EOFException("read past eof");
+                    }
+                    read += newRead;
+                }
+            }
+            file.close();
+            return keys;
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to read the file: " + rank, e);
+            throw new RuntimeException(e);
+        }
+    }
+
     public static byte[] loadArray(int rank, String inFileName) {
         try {
             long fileSize = new File(inFileName).length();
@@ -243,38 +547,32 @@ public final class DataLoader {
     }
 
     public static void saveFast(Record[] records, String outFileName) {
-        try {
-            FileChannel rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
-            ByteBuffer os = rwChannel.map(FileChannel.MapMode.READ_WRITE, 0,
-                    records.length * Record.RECORD_LENGTH);
-            for (int i = 0; i < records.length; i++) {
-                Record r = records[i];
-                os.put(r.getKey().getBytes(), 0, Record.KEY_SIZE);
-                os.put(r.getText().getBytes(), 0, Record.DATA_SIZE);
-            }
-            rwChannel.close();
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Failed write to disc", e);
-            throw new RuntimeException(e);
-        }
+        saveFast(records, records.length, outFileName);
     }
 
+    /**
+     * Save the first size records, writing a window of the file while the next one is filled
+     */
     public static void saveFast(Record[] records, int size, String outFileName) {
+        ExecutorService flusher = Executors.newSingleThreadExecutor();
+        WindowedWriter writer = null;
         int i = 0;
         try {
-            FileChannel rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
-            ByteBuffer os = rwChannel.map(FileChannel.MapMode.READ_WRITE, 0, size * Record.RECORD_LENGTH);
+            writer = new WindowedWriter(outFileName, size, WRITE_WINDOW_RECORDS, flusher);
             for (i = 0; i < size; i++) {
-                Record r = records[i];
-                os.put(r.getKey().getBytes(), 0, Record.KEY_SIZE);
-                os.put(r.getText().getBytes(), 0, Record.DATA_SIZE);
+                writer.put(records[i]);
             }
-            rwChannel.close();
+            writer.close();
+            writer = null;
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "Failed write to disc", e);
             throw new RuntimeException(e);
-        } catch (NullPointerException e) {
-            LOG.info(String.format("Null pointer size %d, i %d", size, i));
+        } finally {
+            if (writer != null) {
+                // only the records before the failure are kept
+                writer.abort(i);
+            }
+            flusher.shutdown();
         }
     }
 }
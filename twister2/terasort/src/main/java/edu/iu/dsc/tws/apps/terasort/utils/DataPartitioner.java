@@ -44,10 +44,170 @@ public class DataPartitioner {
         //Sort the collected records
         Collections.sort(records);
         int div = records.size() / worldSize;
+        Text[] splitters = new Text[noOfSelectedKeys];
         for (int i = 0; i < noOfSelectedKeys; i++) {
             System.arraycopy(records.get((i + 1) * div).getKey().getBytes(), 0,
                             selectedKeys, i * Record.KEY_SIZE, Record.KEY_SIZE);
+            splitters[i] = records.get((i + 1) * div).getKey();
         }
+        LOG.info(String.format("Expected partition imbalance %.3f with %d samples, %d hot keys",
+                imbalance(records, splitters), records.size(), hotKeys(splitters)));
         return selectedKeys;
     }
+
+    /**
+     * A key with more samples than a partition is picked as the splitter of several partitions
+     * in a row. PartitionTree spreads the records of such a hot key over all those partitions.
+     *
+     * @param splitters the sorted splitters
+     * @return number of keys which are the splitter of more than one partition
+     */
+    public static int hotKeys(Text[] splitters) {
+        return hotKeys(pack(splitters));
+    }
+
+    /**
+     * @param splitters the sorted splitters packed in Record.KEY_SIZE bytes each
+     * @return number of keys which are the splitter of more than one partition
+     */
+    public static int hotKeys(byte[] splitters) {
+        int n = splitters.length / Record.KEY_SIZE;
+        int hot = 0;
+        for (int i = 1; i < n; i++) {
+            if (compare(splitters, i, splitters, i - 1) == 0
+                    && (i == 1 || compare(splitters, i - 1, splitters, i - 2) != 0)) {
+                hot++;
+            }
+        }
+        return hot;
+    }
+
+    /**
+     * Estimate the imbalance of the partitions given by the splitters, using the samples.
+     * A key goes to the first partition whose splitter is not smaller than it, and a key equal
+     * to several splitters goes to their partitions in round robin like in PartitionTree.
+     *
+     * @param sorted the samples in sorted order
+     * @param splitters the sorted splitters
+     * @return size of the largest partition divided by the mean size, 1 is perfect balance
+     */
+    public static double imbalance(List<Record> sorted, Text[] splitters) {
+        byte[] keys = new byte[sorted.size() * Record.KEY_SIZE];
+        int[] index = new int[sorted.size()];
+        for (int i = 0; i < index.length; i++) {
+            System.arraycopy(sorted.get(i).getKey().getBytes(), 0, keys, i * Record.KEY_SIZE,
+                    Record.KEY_SIZE);
+            index[i] = i;
+        }
+        return imbalance(keys, index, pack(splitters));
+    }
+
+    /**
+     * Estimate the imbalance of the partitions given by the splitters, using the samples
+     *
+     * @param keys the sample keys packed in Record.KEY_SIZE bytes each
+     * @param sorted the indexes of the keys in sorted order
+     * @param splitters the sorted splitters packed the same way
+     * @return size of the largest partition divided by the mean size, 1 is perfect balance
+     */
+    public static double imbalance(byte[] keys, int[] sorted, byte[] splitters) {
+        if (sorted.length == 0) {
+            return 1;
+        }
+        int n = splitters.length / Record.KEY_SIZE;
+        // number of splitters from each one which are equal to it
+        int[] ties = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            ties[i] = i + 1 < n && compare(splitters, i, splitters, i + 1) == 0
+                    ? ties[i + 1] + 1 : 1;
+        }
+        int[] counts = new int[n + 1];
+        int partition = 0;
+        int sequence = 0;
+        for (int s : sorted) {
+            while (partition < n && compare(keys, s, splitters, partition) > 0) {
+                partition++;
+            }
+            if (partition < n && ties[partition] > 1
+                    && compare(keys, s, splitters, partition) == 0) {
+                counts[partition + sequence++ % ties[partition]]++;
+            } else {
+                counts[partition]++;
+            }
+        }
+        int max = 0;
+        for (int c : counts) {
+            max = Math.max(max, c);
+        }
+        return max * (double) counts.length / sorted.length;
+    }
+
+    /**
+     * Sort packed keys, large sets of keys are sorted in parallel
+     *
+     * @param keys the keys packed in Record.KEY_SIZE bytes each
+     * @return the indexes of the keys in sorted order
+     */
+    public static int[] sort(byte[] keys) {
+        int[] index = new int[keys.length / Record.KEY_SIZE];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = i;
+        }
+        RadixSorter.sort(keys, index, index.length);
+        return index;
+    }
+
+    /**
+     * Pick the splitters of the partitions at even intervals of the sorted samples
+     *
+     * @param keys the sample keys packed in Record.KEY_SIZE bytes each
+     * @param sorted the indexes of the keys in sorted order
+     * @param partitions number of partitions
+     * @return the partitions - 1 splitters packed the same way
+     */
+    public static byte[] select(byte[] keys, int[] sorted, int partitions) {
+        byte[] splitters = new byte[(partitions - 1) * Record.KEY_SIZE];
+        int div = sorted.length / partitions;
+        for (int i = 0; i < partitions - 1; i++) {
+            System.arraycopy(keys, sorted[(i + 1) * div] * Record.KEY_SIZE, splitters,
+                    i * Record.KEY_SIZE, Record.KEY_SIZE);
+        }
+        return splitters;
+    }
+
+    /**
+     * @return the count keys packed in Record.KEY_SIZE bytes each from the key at from
+     */
+    public static Text[] toText(byte[] keys, int from, int count) {
+        Text[] texts = new Text[count];
+        for (int i = 0; i < count; i++) {
+            texts[i] = new Text();
+            texts[i].set(keys, (from + i) * Record.KEY_SIZE, Record.KEY_SIZE);
+        }
+        return texts;
+    }
+
+    private static byte[] pack(Text[] texts) {
+        byte[] keys = new byte[texts.length * Record.KEY_SIZE];
+        for (int i = 0; i < texts.length; i++) {
+            System.arraycopy(texts[i].getBytes(), 0, keys, i * Record.KEY_SIZE, Record.KEY_SIZE);
+        }
+        return keys;
+    }
+
+    /**
+     * Compare the i th key of a with the j th key of b as unsigned bytes
+     */
+    private static int compare(byte[] a, int i, byte[] b, int j) {
+        int offsetA = i * Record.KEY_SIZE;
+        int offsetB = j * Record.KEY_SIZE;
+        for (int k = 0; k < Record.KEY_SIZE; k++) {
+            int x = a[offsetA + k] & 0xff;
+            int y = b[offsetB + k] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
 }
@@ -1,17 +1,20 @@
 package edu.iu.dsc.tws.apps.terasort.utils;
 
-import edu.iu.dsc.tws.apps.terasort.utils.heap.Heap;
-import edu.iu.dsc.tws.apps.terasort.utils.heap.HeapNode;
+import edu.iu.dsc.tws.apps.terasort.utils.heap.LoserTree;
 import edu.iu.dsc.tws.comms.mpi.io.KeyedContent;
 import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.hadoop.io.Text;
-import org.apache.log4j.net.SyslogAppender;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -22,306 +25,455 @@ public class FSMergeSorter {
   private static Logger LOG = Logger.getLogger(FSMergeSorter.class.getName());
 
   private int maxRecordsInMemory;
-  // number of records to read from file
-  private int readSize = 100000;
+  // number of records in each read ahead buffer of a saved file
+  private int readSize = 10000;
+  // maximum number of saved files merged at once, more files are merged in multiple passes
+  private int maxFanIn = 64;
+  // threads reading ahead the saved files while merging
+  private static final int READ_AHEAD_THREADS = 2;
+  // number of records in each window of the output files
+  private int writeWindow = 1 << 16;
   private int listLimit = 20000;
+  // default number of threads sorting and saving records to disk
+  private static final int DEFAULT_SPILL_WORKERS = 2;
+  // save the files in compressed blocks of readSize records
+  private boolean compressSpills;
+  // if not null the records are spilled to this store instead of files
+  private LMDBSpillStore spillStore;
+  // time and records of the receive, sort, spill, merge and write stages
+  private StageMetrics metrics;
   long sortTime = 0;
-  Record[] r = new Record[listLimit];
-  private int currentCount = 0;
+  // the buffer currently being filled by the receiver
+  private RecordBuffer current;
   private String outFolder;
-  private byte[] key = new byte[Record.KEY_SIZE];
-  private byte[] text = new byte[Record.DATA_SIZE];
-  private volatile List<Record[]> recordsList = new ArrayList<>();
+  private volatile List<RecordBuffer> recordsList = new ArrayList<>();
+  // buffers returned after their records are saved to disk
+  private Deque<RecordBuffer> freeBuffers = new ArrayDeque<>();
+  // the receiver waits for a free buffer once this many are allocated
+  private int maxBuffers;
+  private int allocatedBuffers = 0;
   private long currentRecordsInMemory = 0;
   private int saveIndex = 0;
-  private SortWorker sortWorker;
-  private Thread sortWorkerThread;
+  private List<SortWorker> sortWorkers = new ArrayList<>();
+  private List<Thread> sortWorkerThreads = new ArrayList<>();
   private String cacheFolder;
   private int rank;
-  private Map<Integer, Integer> savedFileSizes = new HashMap<Integer, Integer>();
-  private Map<Integer, OpenFile> fileParts = new HashMap<Integer, OpenFile>();
+  private Map<Integer, Long> savedFileSizes = new HashMap<Integer, Long>();
+  private ExecutorService readAhead;
+  // writes the output windows while the next ones are merged
+  private ExecutorService writeBehind;
   List<byte[]> keys;
   List<byte[]> values;
 
   private Lock lock = new ReentrantLock();
   private Condition notFull = lock.newCondition();
+  private Condition bufferFree = lock.newCondition();
   private long mergeTime = 0;
 
-  private class OpenFile {
-    FileChannel rwChannel;
-    ByteBuffer os;
-    DataInputStream stream;
+  /**
+   * A sorted run which does not fit in memory, read a buffer at a time
+   */
+  private interface RunReader {
+    boolean hasMore();
 
-    public OpenFile(FileChannel rwChannel, ByteBuffer os) {
+    /**
+     * Get the next records of the run
+     */
+    RecordBuffer read();
+  }
+
+  /**
+   * A saved file read through two buffers. The next buffer is filled in the background
+   * while the records of the current one are merged.
+   */
+  private class OpenFile implements RunReader {
+    FileChannel rwChannel;
+    String fileName;
+    // number of records in the file and number handed out
+    long records;
+    long read;
+    private ByteBuffer[] buffers = new ByteBuffer[2];
+    // the buffer being filled
+    private int next = 0;
+    private Future<Integer> pending;
+    // file position of the next read, only changed by the pending read
+    private long position = 0;
+    // decodes the blocks of a compressed file
+    private SpillCodec codec;
+    private ByteBuffer header;
+    private byte[] payload;
+
+    public OpenFile(FileChannel rwChannel, String fileName, long records) {
       this.rwChannel = rwChannel;
-      this.os = os;
+      this.fileName = fileName;
+      this.records = records;
+      int bufferRecords = (int) Math.max(1, Math.min(readSize, records));
+      for (int i = 0; i < buffers.length; i++) {
+        buffers[i] = ByteBuffer.allocateDirect(bufferRecords * Record.RECORD_LENGTH);
+      }
+      if (compressSpills) {
+        codec = new SpillCodec();
+        header = ByteBuffer.allocate(SpillCodec.HEADER_SIZE);
+        payload = new byte[0];
+      }
+      fill();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return read < records;
+    }
+
+    /**
+     * Get the next records of the file, waiting if they are not read yet
+     */
+    @Override
+    public RecordBuffer read() {
+      int size;
+      try {
+        size = pending.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException("Failed to read " + fileName, e);
+      }
+      ByteBuffer b = buffers[next];
+      next = 1 - next;
+      read += size;
+      // the other buffer was consumed before asking for this one
+      if (read < records) {
+        fill();
+      }
+      return RecordBuffer.wrap(b, size);
+    }
+
+    private void fill() {
+      final ByteBuffer b = buffers[next];
+      final int size = (int) Math.min(b.capacity() / Record.RECORD_LENGTH, records - read);
+      pending = readAhead.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          if (codec != null) {
+            return readBlock(b);
+          }
+          b.clear();
+          b.limit(size * Record.RECORD_LENGTH);
+          readFully(b);
+          return size;
+        }
+      });
     }
 
-    public OpenFile(DataInputStream stream) {
-      this.stream = stream;
+    private int readBlock(ByteBuffer b) throws IOException {
+      header.clear();
+      readFully(header);
+      int length = SpillCodec.payloadLength(header);
+      if (payload.length < length) {
+        payload = new byte[length];
+      }
+      ByteBuffer p = ByteBuffer.wrap(payload, 0, length);
+      readFully(p);
+      return codec.decode(header, payload, b);
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+      while (b.hasRemaining()) {
+        int n = rwChannel.read(b, position);
+        if (n < 0) {
+          throw new EOFException("read past eof " + fileName);
+        }
+        position += n;
+      }
+    }
+
+    void close(boolean delete) {
+      try {
+        if (codec != null) {
+          codec.close();
+        }
+        rwChannel.close();
+        if (delete) {
+          Files.deleteIfExists(Paths.get(fileName));
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to close " + fileName, e);
+      }
     }
   }
 
   public FSMergeSorter(int rank, int maxRecords, String outFolder, String cacheFolder) {
+    this(rank, maxRecords, outFolder, cacheFolder, DEFAULT_SPILL_WORKERS);
+  }
+
+  public FSMergeSorter(int rank, int maxRecords, String outFolder, String cacheFolder,
+                       int spillWorkers) {
+    this(rank, maxRecords, outFolder, cacheFolder, spillWorkers, false);
+  }
+
+  public FSMergeSorter(int rank, int maxRecords, String outFolder, String cacheFolder,
+                       int spillWorkers, boolean compressSpills) {
+    this(rank, maxRecords, outFolder, cacheFolder, spillWorkers, compressSpills, null);
+  }
+
+  public FSMergeSorter(int rank, int maxRecords, String outFolder, String cacheFolder,
+                       int spillWorkers, boolean compressSpills, LMDBSpillStore spillStore) {
+    this.compressSpills = compressSpills;
+    this.spillStore = spillStore;
+    this.metrics = new StageMetrics(rank);
     this.maxRecordsInMemory = maxRecords;
     this.outFolder = outFolder;
     this.cacheFolder = cacheFolder;
     this.rank = rank;
-    sortWorker = new SortWorker();
-    sortWorkerThread = new Thread(sortWorker);
-    sortWorkerThread.start();
+    this.current = new RecordBuffer(listLimit);
+    this.allocatedBuffers = 1;
+    // every worker can hold one set of records while another set is being filled
+    this.maxBuffers = (spillWorkers + 1) * (maxRecords / listLimit + 1) + 1;
+    for (int i = 0; i < spillWorkers; i++) {
+      SortWorker sortWorker = new SortWorker();
+      Thread sortWorkerThread = new Thread(sortWorker);
+      sortWorkers.add(sortWorker);
+      sortWorkerThreads.add(sortWorkerThread);
+      sortWorkerThread.start();
+    }
   }
 
   public void add(ByteBuffer data, int size) {
-    // for now lets get the keys and sort them
     int records = size / Record.RECORD_LENGTH;
-    Record[] r = new Record[records];
     data.rewind();
-    for (int i = 0; i < records; i++) {
-      data.get(key, 0, Record.KEY_SIZE);
-      data.get(text, 0, Record.DATA_SIZE);
-      r[i] = new Record(new Text(key), new Text(text));
-    }
-    lock.lock();
-    try {
-      recordsList.add(r);
-      currentRecordsInMemory += r.length;
-      // LOG.info(String.format("Rank %d add records %d", rank, currentRecordsInMemory));
-      notFull.signal();
-    } finally {
-      lock.unlock();
+    while (records > 0) {
+      records -= current.add(data, records);
+      if (current.isFull()) {
+        addCurrent();
+      }
     }
   }
 
   public void addData(List<ImmutablePair<byte[], byte[]>> data) {
+    long start = System.nanoTime();
     int records = data.size();
     for (int i = 0; i < records; i++) {
-      r[currentCount] = new Record(new Text(data.get(i).getKey()), new Text(data.get(i).getValue()));
-      currentCount++;
-      if(currentCount == listLimit){
-        lock.lock();
-        try {
-          recordsList.add(r);
-          currentRecordsInMemory += r.length;
-          // LOG.info(String.format("Rank %d add records %d", rank, currentRecordsInMemory));
-          notFull.signal();
-        } finally {
-          lock.unlock();
-        }
-        currentCount = 0;
-        r = new Record[listLimit];
+      current.add(data.get(i).getKey(), data.get(i).getValue());
+      if (current.isFull()) {
+        addCurrent();
       }
     }
-
+    metrics.record(StageMetrics.Stage.PARTITION_RECEIVE, start, records,
+        (long) records * Record.RECORD_LENGTH);
   }
 
+  /**
+   * Add the keys and values of the content. Each element may hold a block of
+   * packed keys and the matching values.
+   */
   public void addData(KeyedContent data) {
+    long start = System.nanoTime();
+    long total = 0;
     keys = (List) data.getSource();
     values = (List) data.getObject();
-    int records = keys.size();
-    for (int i = 0; i < records; i++) {
-      r[currentCount] = new Record(new Text(keys.get(i)), new Text(values.get(i)));
-      currentCount++;
-      if(currentCount == listLimit){
-        lock.lock();
-        try {
-          recordsList.add(r);
-          currentRecordsInMemory += r.length;
-          // LOG.info(String.format("Rank %d add records %d", rank, currentRecordsInMemory));
-          notFull.signal();
-        } finally {
-          lock.unlock();
-        }
-        currentCount = 0;
-        r = new Record[listLimit];
+    int blocks = keys.size();
+    for (int i = 0; i < blocks; i++) {
+      byte[] k = keys.get(i);
+      byte[] v = values.get(i);
+      int records = k.length / Record.KEY_SIZE;
+      for (int j = 0; j < records; j++) {
+        add(k, j * Record.KEY_SIZE, v, j * Record.DATA_SIZE);
+      }
+      total += records;
+    }
+    metrics.record(StageMetrics.Stage.PARTITION_RECEIVE, start, total,
+        total * Record.RECORD_LENGTH);
+  }
+
+  /**
+   * Add a record whose key and value are at the given offsets of packed arrays
+   */
+  public void add(byte[] keys, int keyOffset, byte[] values, int valueOffset) {
+    current.add(keys, keyOffset, values, valueOffset);
+    if (current.isFull()) {
+      addCurrent();
+    }
+  }
+
+  /**
+   * Use the given metrics for the stages of this sorter, i.e. to keep all the stages of a
+   * rank together
+   */
+  public void setMetrics(StageMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public StageMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Hand over the current buffer to the sort workers and start filling a free one.
+   * If the workers hold all the buffers we are allowed, wait until one is saved.
+   */
+  private void addCurrent() {
+    boolean allocate = false;
+    lock.lock();
+    try {
+      recordsList.add(current);
+      currentRecordsInMemory += current.size();
+      // LOG.info(String.format("Rank %d add records %d", rank, currentRecordsInMemory));
+      notFull.signal();
+      while (freeBuffers.isEmpty() && allocatedBuffers >= maxBuffers) {
+        bufferFree.await();
       }
+      current = freeBuffers.poll();
+      if (current == null) {
+        allocatedBuffers++;
+        allocate = true;
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      lock.unlock();
+    }
+    if (allocate) {
+      current = new RecordBuffer(listLimit);
     }
   }
 
   public void doneReceive() {
-    sortWorker.stop();
-    while (!sortWorker.hasStopped) {
-      lock.lock();
-      try {
-        notFull.signal();
-      } finally {
-        lock.unlock();
+    for (SortWorker sortWorker : sortWorkers) {
+      sortWorker.stop();
+    }
+    for (SortWorker sortWorker : sortWorkers) {
+      while (!sortWorker.hasStopped) {
+        lock.lock();
+        try {
+          notFull.signalAll();
+        } finally {
+          lock.unlock();
+        }
       }
     }
     LOG.info(String.format("Rank %d Stopped receiving", rank));
   }
 
   public long merge() {
-    // merge the remaiing lists
-    Record[][] records = new Record[recordsList.size()][];
-    for (int i = 0; i < recordsList.size(); i++) {
-      records[i] = recordsList.get(i);
-      Arrays.sort(records[i]);
+    // merge the remaining buffers with the saved files
+    if (current.size() > 0) {
+      recordsList.add(current);
     }
+    int inMemory = recordsList.size();
     long totalToSave = 0;
-    Record[] inMemoryRecords = merge(records, records.length);
-    totalToSave += inMemoryRecords.length;
+    RecordBuffer[] memoryRuns = recordsList.toArray(new RecordBuffer[inMemory]);
+    for (RecordBuffer b : memoryRuns) {
+      totalToSave += b.size();
+    }
+    long sortStart = System.nanoTime();
+    RadixSorter.sort(memoryRuns);
+    metrics.record(StageMetrics.Stage.SORT, sortStart, totalToSave,
+        totalToSave * Record.RECORD_LENGTH);
 
+    // the saved files which are not merged yet
+    Deque<Integer> savedFiles = new ArrayDeque<>();
     for (int i = 0; i < saveIndex; i++) {
+      savedFiles.add(i);
       totalToSave += savedFileSizes.get(i);
     }
-
-    int saveFileIndex = 0;
-    int k = saveIndex + 1;
-    // create index pointer for every list.
-    int[] ptrs = new int[k];
-    for (int i = 0; i < ptrs.length; i++) {
-      ptrs[i] = 0;
-    }
-
-    int resultIndex = 0;
-    Record[] result = new Record[maxRecordsInMemory];
-
-    // how many records we have read from the file so far
-    Map<Integer, Integer> currentReadSizes = new HashMap<>();
-    for (int i = 0; i < saveIndex; i++) {
-      currentReadSizes.put(i, 0);
+    // the spill store gives all its records as one run
+    int storeRuns = 0;
+    if (spillStore != null && spillStore.size() > 0) {
+      totalToSave += spillStore.size();
+      storeRuns = 1;
     }
 
+    int saveFileIndex = 0;
+    long mergeStart = System.nanoTime();
+    readAhead = Executors.newFixedThreadPool(READ_AHEAD_THREADS);
+    writeBehind = Executors.newSingleThreadExecutor();
+    List<OpenFile> openFiles = new ArrayList<>();
+    StoreRun storeRun = null;
     try {
-      // open the saved files
-      openSavedFiles();
-      // read initial data from the open file
-
-      // create a heap with number of saved files + 1
-      Heap heap = new Heap(k);
-
-      Record[][] A = new Record[k][];
-      A[0] = inMemoryRecords;
-      for (int i = 1; i < k; i++) {
-        int currentRead = currentReadSizes.get(i - 1);
-        int fileSize = savedFileSizes.get(i - 1);
-        int sizeToRead = currentRead + readSize > fileSize ? fileSize - currentRead : readSize;
-//        LOG.info(String.format("Rank %d From %d Size to read %d currentRead %d fileSize %d", rank, i - 1, sizeToRead, currentRead, fileSize));
-        A[i] = read(fileParts.get(i - 1), sizeToRead);
-        currentRead += sizeToRead;
-        currentReadSizes.put(i - 1, currentRead);
-      }
-
-      // initial insertion
-      for (int i = 0; i < k; i++) {
-        if (ptrs[i] < A[i].length) {
-          heap.insert(A[i][ptrs[i]], i);
-        } else {
-          heap.insert(new Record(new Text(Heap.largest)), i);
-        }
+      // merge groups of saved files until the rest can be merged at once
+      while (savedFiles.size() > maxFanIn) {
+        mergeSavedFiles(savedFiles);
       }
 
+      RecordBuffer[] runs = new RecordBuffer[inMemory + savedFiles.size() + storeRuns];
+      RunReader[] files = new RunReader[runs.length];
+      System.arraycopy(memoryRuns, 0, runs, 0, inMemory);
+      int i = inMemory;
+      for (int part : savedFiles) {
+        OpenFile file = openSavedPart(part);
+        openFiles.add(file);
+        files[i] = file;
+        runs[i] = file.read();
+        i++;
+      }
+      if (storeRuns > 0) {
+        storeRun = new StoreRun();
+        files[i] = storeRun;
+        runs[i] = storeRun.read();
+      }
+
+      RunMerger merger = new RunMerger(runs, files);
       long count = 0;
       while (count < totalToSave) {
-        HeapNode h = heap.extractMin();
-        result[resultIndex] = h.data;
-        resultIndex++;
-
-        if (resultIndex == result.length) {
-          String outFileName = Paths.get(outFolder, rank + "_" + saveFileIndex).toString();
-//          LOG.info(String.format("Rank %d saving size %d index %d", rank, resultIndex, saveFileIndex));
-          DataLoader.saveFast(result, resultIndex, outFileName);
-          saveFileIndex++;
-          resultIndex = 0;
-        }
-
-        ptrs[h.listNo]++;
-        if (ptrs[h.listNo] < A[h.listNo].length) {
-          heap.insert(A[h.listNo][ptrs[h.listNo]], h.listNo);
-        } else {
-          if (h.listNo != 0) {
-            // now check weather we have data in file
-            int i = h.listNo;
-            int currentRead = currentReadSizes.get(i - 1);
-            int fileSize = savedFileSizes.get(i - 1);
-            int sizeToRead = currentRead + readSize > fileSize ? fileSize - currentRead : readSize;
-//            LOG.info(String.format("Rank %d SizeToRead %d currentRead %d fileSize %d readSize %d count %d totalToSave %d ptrs[h.listNo] %d A[h.listNo].length %d", rank, sizeToRead, currentRead, fileSize, readSize, count, totalToSave, ptrs[h.listNo], A[h.listNo].length));
-            if (sizeToRead > 0) {
-              A[h.listNo] = read(fileParts.get(i - 1), sizeToRead);
-              ptrs[h.listNo] = 0;
-              heap.insert(A[h.listNo][ptrs[h.listNo]], h.listNo);
-              // ptrs[h.listNo]++;
-              currentRead += sizeToRead;
-              currentReadSizes.put(i - 1, currentRead);
-            } else {
-//              LOG.info(String.format("Rank %d Inserting largest %d", rank, h.listNo));
-              heap.insert(new Record(new Text(Heap.largest)), h.listNo);
-            }
-          } else {
-            heap.insert(new Record(new Text(Heap.largest)), h.listNo);
-          }
-        }
-        count++;
-      }
-//      LOG.info(String.format("Rank %d total save %d", rank, totalToSave));
-      if (resultIndex > 0) {
+        int size = (int) Math.min(maxRecordsInMemory, totalToSave - count);
         String outFileName = Paths.get(outFolder, rank + "_" + saveFileIndex).toString();
-//        LOG.info(String.format("Rank %d *** saving size %d index %d", rank, resultIndex, saveFileIndex));
-        DataLoader.saveFast(result, resultIndex, outFileName);
+//        LOG.info(String.format("Rank %d saving size %d index %d", rank, size, saveFileIndex));
+        writeOutput(merger, size, outFileName);
+        saveFileIndex++;
+        count += size;
       }
+//      LOG.info(String.format("Rank %d total save %d", rank, totalToSave));
+      metrics.record(StageMetrics.Stage.MERGE, mergeStart, totalToSave,
+          totalToSave * Record.RECORD_LENGTH);
     } finally {
-      for (OpenFile f : fileParts.values()) {
-        try {
-          if (f.rwChannel != null) {
-            f.rwChannel.close();
-          }
-          if (f.stream != null) {
-            f.stream.close();
-          }
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+      for (OpenFile f : openFiles) {
+        f.close(false);
       }
+      if (storeRun != null) {
+        storeRun.close();
+      }
+      if (spillStore != null) {
+        spillStore.close();
+      }
+      readAhead.shutdownNow();
+      writeBehind.shutdownNow();
     }
 
     return sortTime;
   }
 
-  private void openSavedFiles() {
-    for (int i = 0; i < saveIndex; i++) {
-      fileParts.put(i, openSavedPart(i, savedFileSizes.get(i) * Record.RECORD_LENGTH));
-    }
-  }
-
-  public static Record[] merge(Record[][] A, int k) {
-    Heap heap = new Heap(k);
-
-    int nk = 0;
-    for (int i = 0; i < A.length; i++) {
-      nk += A[i].length;
-    }
-    Record[] result = new Record[nk];
-    int count = 0;
-    int[] ptrs = new int[k];
-    // create index pointer for every list.
-    for (int i = 0; i < ptrs.length; i++) {
-      ptrs[i] = 0;
-    }
-    for (int i = 0; i < k; i++) {
-      if (ptrs[i] < A[i].length) {
-        heap.insert(A[i][ptrs[i]], i);
-      } else {
-        heap.insert(new Record(new Text(Heap.largest)), i);
+  /**
+   * Merge the first maxFanIn saved files in to a new saved file, which is added to the end
+   */
+  private void mergeSavedFiles(Deque<Integer> savedFiles) {
+    int index = saveIndex++;
+    RecordBuffer[] runs = new RecordBuffer[maxFanIn];
+    OpenFile[] files = new OpenFile[maxFanIn];
+    long size = 0;
+    try {
+      for (int i = 0; i < maxFanIn; i++) {
+        int part = savedFiles.poll();
+        files[i] = openSavedPart(part);
+        runs[i] = files[i].read();
+        size += files[i].records;
       }
-    }
-    while (count < nk) {
-      HeapNode h = heap.extractMin();
-      result[count] = h.data;
-      ptrs[h.listNo]++;
-      if (ptrs[h.listNo] < A[h.listNo].length) {
-        heap.insert(A[h.listNo][ptrs[h.listNo]], h.listNo);
-      } else {
-//        LOG.info("******************************************************** ");
-        heap.insert(new Record(new Text(Heap.largest)), h.listNo);
+      String outFileName = Paths.get(cacheFolder, rank + "_" + index).toString();
+//      LOG.info(String.format("Rank %d merging %d files to %s with size %d", rank, maxFanIn, outFileName, size));
+      long start = System.nanoTime();
+      writeFile(new RunMerger(runs, files), size, outFileName);
+      metrics.record(StageMetrics.Stage.MERGE, start, size, size * Record.RECORD_LENGTH);
+    } finally {
+      // the merged files are not needed anymore
+      for (OpenFile f : files) {
+        if (f != null) {
+          f.close(true);
+        }
       }
-      count++;
     }
-    return result;
+    savedFileSizes.put(index, size);
+    savedFiles.add(index);
   }
 
   /**
-   * A worker class to
+   * A worker class to sort and save a set of records once we have maxRecordsInMemory of them.
+   * A number of these run together, so records are received while others are saved.
    */
   private class SortWorker implements Runnable {
     private volatile boolean run = true;
@@ -329,51 +481,80 @@ public class FSMergeSorter {
     @Override
     public void run() {
       while (run) {
-        // check weather we have enough records
-//        LOG.info(String.format("rank %d max records %d current records %d", rank, maxRecordsInMemory, currentRecordsInMemory));
-        if  (currentRecordsInMemory >= maxRecordsInMemory) {
-          // now save to disk
-          long startTime = System.currentTimeMillis();
-          List<Record[]> list;
-          lock.lock();
-          try {
+        List<RecordBuffer> list = null;
+        int index = 0;
+        lock.lock();
+        try {
+          // check weather we have enough records
+//          LOG.info(String.format("rank %d max records %d current records %d", rank, maxRecordsInMemory, currentRecordsInMemory));
+          if (currentRecordsInMemory >= maxRecordsInMemory) {
             list = recordsList;
             recordsList = new ArrayList<>();
             currentRecordsInMemory = 0;
-          } finally {
-            lock.unlock();
-          }
-
-          Record[][] records = new Record[list.size()][];
-          for (int i = 0; i < records.length; i++) {
-            records[i] = list.get(i);
-            Arrays.sort(records[i]);
+            // records put in to the spill store do not make a saved file
+            index = spillStore != null ? -1 : saveIndex++;
+          } else if (run) {
+            notFull.await();
           }
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        } finally {
+          lock.unlock();
+        }
 
-          Record[] save = merge(records, records.length);
-          String outFileName = Paths.get(cacheFolder, rank + "_" + saveIndex).toString();
-//          LOG.info(String.format("Rank %d Saving to file: %s with size %d", rank, outFileName, save.length));
-          saveFile(save, save.length, outFileName);
-          savedFileSizes.put(saveIndex, save.length);
-          saveIndex++;
-          sortTime += (System.currentTimeMillis() - startTime);
-        } else {
-          lock.lock();
-          try {
-            if (run) {
-              notFull.await();
-            }
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          } finally {
-            lock.unlock();
-          }
+        if (list != null) {
+          save(list, index);
         }
       }
       hasStopped = true;
 //      LOG.info(String.format("Rank %d thread stopped **** ", rank));
     }
 
+    private void save(List<RecordBuffer> list, int index) {
+      long startTime = System.currentTimeMillis();
+      long sortStart = System.nanoTime();
+      RecordBuffer[] records = new RecordBuffer[list.size()];
+      int size = 0;
+      for (int i = 0; i < records.length; i++) {
+        records[i] = list.get(i);
+        size += records[i].size();
+      }
+      RadixSorter.sort(records);
+      long spillStart = System.nanoTime();
+      metrics.record(StageMetrics.Stage.SORT, sortStart, size, (long) size * Record.RECORD_LENGTH);
+
+      if (spillStore != null) {
+        spillStore.put(records);
+      } else {
+        String outFileName = Paths.get(cacheFolder, rank + "_" + index).toString();
+//        LOG.info(String.format("Rank %d Saving to file: %s with size %d", rank, outFileName, size));
+        RunMerger merger = new RunMerger(records, new RunReader[records.length]);
+        if (compressSpills) {
+          writeFile(merger, size, outFileName);
+        } else {
+          saveFile(merger, size, outFileName);
+        }
+      }
+      metrics.record(StageMetrics.Stage.SPILL, spillStart, size,
+          (long) size * Record.RECORD_LENGTH);
+
+      // the buffers can be filled again
+      lock.lock();
+      try {
+        if (spillStore == null) {
+          savedFileSizes.put(index, (long) size);
+        }
+        for (RecordBuffer b : records) {
+          b.clear();
+          freeBuffers.add(b);
+        }
+        bufferFree.signal();
+        sortTime += (System.currentTimeMillis() - startTime);
+      } finally {
+        lock.unlock();
+      }
+    }
+
     public void stop() {
       lock.lock();
       try {
@@ -388,80 +569,159 @@ public class FSMergeSorter {
     }
   }
 
-  private Record[] read(OpenFile file, int size) {
-    ByteBuffer b = file.os;
-    Record[] r = new Record[size];
-    for (int i = 0; i < size; i++) {
-      b.get(key);
-      b.get(text);
-      r[i] = new Record(new Text(key), new Text(text));
+  /**
+   * Merges sorted record buffers, reading the next part of a spilled file
+   * once its buffer is consumed
+   */
+  private class RunMerger implements LoserTree.Inputs {
+    private RecordBuffer[] runs;
+    private RunReader[] files;
+    private int[] ptrs;
+    private LoserTree tree;
+
+    RunMerger(RecordBuffer[] runs, RunReader[] files) {
+      this.runs = runs;
+      this.files = files;
+      this.ptrs = new int[runs.length];
+      this.tree = new LoserTree(runs.length, this);
     }
-    return r;
-  }
 
-  private int read(byte[] buf, int size, DataInputStream stream) {
-    int readSize = 0;
-    while (readSize < size) {
-      try {
-        readSize = stream.read(buf, readSize, size - readSize);
-        if (readSize < 0) {
-          throw new RuntimeException("Failed to read");
+    /**
+     * Write the smallest remaining record to the output
+     */
+    void next(ByteBuffer out) {
+      int run = tree.winner();
+      runs[run].copyTo(ptrs[run], out);
+      ptrs[run]++;
+      if (ptrs[run] == runs[run].size()) {
+        RunReader file = files[run];
+        if (file != null && file.hasMore()) {
+          runs[run] = file.read();
+          ptrs[run] = 0;
         }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
       }
+      tree.update();
+    }
+
+    @Override
+    public boolean isExhausted(int run) {
+      return ptrs[run] >= runs[run].size();
+    }
+
+    @Override
+    public int compare(int a, int b) {
+      return runs[a].compare(ptrs[a], runs[b], ptrs[b]);
     }
-    return readSize;
   }
 
-  private Record[] readStream(OpenFile file, int size) {
-    Record[] r = new Record[size];
-    DataInputStream stream = file.stream;
-    for (int i = 0; i < size; i++) {
-      read(key, Record.KEY_SIZE, stream);
-      read(text, Record.DATA_SIZE, stream);
-      r[i] = new Record(new Text(key), new Text(text));
+  /**
+   * The records of the spill store, read with a cursor on the merging thread
+   */
+  private class StoreRun implements RunReader {
+    private LMDBSpillStore.Reader reader = spillStore.reader();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(readSize * Record.RECORD_LENGTH);
+    private long remaining = spillStore.size();
+
+    @Override
+    public boolean hasMore() {
+      return remaining > 0;
+    }
+
+    @Override
+    public RecordBuffer read() {
+      int size = reader.read(buffer, readSize);
+      remaining -= size;
+      return RecordBuffer.wrap(buffer, size);
+    }
+
+    void close() {
+      reader.close();
     }
-    return r;
   }
 
-  private OpenFile openSavedPart(int part, long length) {
+  private OpenFile openSavedPart(int part) {
     String outFileName = Paths.get(cacheFolder, rank + "_" + part).toString();
-    FileChannel rwChannel = null;
     try {
-      rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
-      ByteBuffer os = rwChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
-      return new OpenFile(rwChannel, os);
+      FileChannel rwChannel = new RandomAccessFile(outFileName, "r").getChannel();
+      return new OpenFile(rwChannel, outFileName, savedFileSizes.get(part));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private OpenFile openStreamFile(int part, long length) {
-    String outFileName = Paths.get(cacheFolder, rank + "_" + part).toString();
+  private void saveFile(RunMerger merger, int size, String outFileName) {
     try {
-      DataInputStream stream = new DataInputStream(
-          new BufferedInputStream(
-              new FileInputStream(new File(outFileName))));
-      return new OpenFile(stream);
+      FileChannel rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
+      ByteBuffer os = rwChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+          (long) size * Record.RECORD_LENGTH);
+      for (int i = 0; i < size; i++) {
+        merger.next(os);
+      }
+      rwChannel.close();
     } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Failed write to disc", e);
       throw new RuntimeException(e);
     }
   }
 
-  public void saveFile(Record[] records, int size, String outFileName) {
+  /**
+   * Write the merged records to an output file a window at a time
+   */
+  private void writeOutput(RunMerger merger, int size, String outFileName) {
     try {
-      FileChannel rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
-      ByteBuffer os = rwChannel.map(FileChannel.MapMode.READ_WRITE, 0, records.length * Record.RECORD_LENGTH);
+      long start = System.nanoTime();
+      WindowedWriter writer = new WindowedWriter(outFileName, size, writeWindow, writeBehind);
       for (int i = 0; i < size; i++) {
-        Record r = records[i];
-        os.put(r.getKey().getBytes(), 0, Record.KEY_SIZE);
-        os.put(r.getText().getBytes(), 0, Record.DATA_SIZE);
+        merger.next(writer.buffer());
+      }
+      writer.close();
+      metrics.record(StageMetrics.Stage.WRITE, start, System.nanoTime(), writer.getWriteNanos(),
+          size, (long) size * Record.RECORD_LENGTH);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Failed write to disc", e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Write the records through a buffer, the merged files may be too large to map at once.
+   * If the spills are compressed every buffer is written as a block.
+   */
+  private void writeFile(RunMerger merger, long size, String outFileName) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(readSize * Record.RECORD_LENGTH);
+    SpillCodec codec = compressSpills ? new SpillCodec() : null;
+    try {
+      FileChannel rwChannel = new RandomAccessFile(outFileName, "rw").getChannel();
+      for (long i = 0; i < size; i++) {
+        if (!buffer.hasRemaining()) {
+          flush(rwChannel, buffer, codec);
+        }
+        merger.next(buffer);
+      }
+      if (buffer.position() > 0) {
+        flush(rwChannel, buffer, codec);
       }
       rwChannel.close();
     } catch (IOException e) {
       LOG.log(Level.SEVERE, "Failed write to disc", e);
       throw new RuntimeException(e);
+    } finally {
+      if (codec != null) {
+        codec.close();
+      }
+    }
+  }
+
+  private void flush(FileChannel rwChannel, ByteBuffer buffer, SpillCodec codec)
+      throws IOException {
+    buffer.flip();
+    ByteBuffer block = buffer;
+    if (codec != null) {
+      block = codec.encode(buffer, buffer.remaining() / Record.RECORD_LENGTH);
+    }
+    while (block.hasRemaining()) {
+      rwChannel.write(block);
     }
+    buffer.clear();
   }
 }
@@ -0,0 +1,171 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.CursorIterator;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.KeyRange;
+import org.lmdbjava.Txn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.lmdbjava.DbiFlags.MDB_CREATE;
+import static org.lmdbjava.EnvFlags.MDB_MAPASYNC;
+import static org.lmdbjava.EnvFlags.MDB_NOSYNC;
+import static org.lmdbjava.EnvFlags.MDB_WRITEMAP;
+
+/**
+ * Keeps the spilled records of FSMergeSorter in an LMDB database instead of files. The
+ * database keeps its keys in order, so all the spilled records come back as a single sorted
+ * run. A record is stored with its key followed by a sequence number, which keeps records
+ * with equal keys apart, and its value. Every spill is put in one write transaction.
+ */
+public class LMDBSpillStore {
+  private static final Logger LOG = Logger.getLogger(LMDBSpillStore.class.getName());
+  private static final int POSIX_MODE = 0664;
+  private static final int STORE_KEY_SIZE = Record.KEY_SIZE + 8;
+
+  private File path;
+  private Env<ByteBuffer> env;
+  private Dbi<ByteBuffer> db;
+  private long records = 0;
+
+  private ByteBuffer record = ByteBuffer.allocateDirect(Record.RECORD_LENGTH);
+  private ByteBuffer key = ByteBuffer.allocateDirect(STORE_KEY_SIZE);
+  private ByteBuffer value;
+
+  /**
+   * @param folder the database is created in a sub folder of this
+   * @param rank rank of the worker
+   * @param mapSize largest size the database may grow to, in bytes
+   */
+  public LMDBSpillStore(String folder, int rank, long mapSize) {
+    this.path = Paths.get(folder, rank + "_lmdb").toFile();
+    if (!path.exists() && !path.mkdirs()) {
+      throw new RuntimeException("Failed to create " + path);
+    }
+    // the store is thrown away after the sort, so nothing has to reach the disk in order
+    this.env = Env.create()
+        .setMapSize(mapSize)
+        .setMaxDbs(1)
+        .open(path, POSIX_MODE, new EnvFlags[]{MDB_NOSYNC, MDB_WRITEMAP, MDB_MAPASYNC});
+    this.db = env.openDbi("spill", MDB_CREATE);
+    record.position(Record.KEY_SIZE);
+    this.value = record.slice();
+  }
+
+  /**
+   * Put sorted records in to the store in a single transaction
+   */
+  public synchronized void put(RecordBuffer[] buffers) {
+    Txn<ByteBuffer> txn = env.txnWrite();
+    try {
+      Cursor<ByteBuffer> cursor = db.openCursor(txn);
+      for (RecordBuffer b : buffers) {
+        for (int i = 0; i < b.size(); i++) {
+          record.clear();
+          b.copyTo(i, record);
+          record.flip();
+          record.limit(Record.KEY_SIZE);
+          key.clear();
+          key.put(record);
+          key.putLong(records++);
+          key.flip();
+          value.clear();
+          cursor.put(key, value);
+        }
+      }
+      cursor.close();
+      txn.commit();
+    } finally {
+      txn.close();
+    }
+  }
+
+  /**
+   * @return number of records in the store
+   */
+  public synchronized long size() {
+    return records;
+  }
+
+  /**
+   * Read the records in key order. The reader must be used by the thread which opened it.
+   */
+  public Reader reader() {
+    return new Reader();
+  }
+
+  /**
+   * Close the database and delete its files
+   */
+  public void close() {
+    env.close();
+    File[] files = path.listFiles();
+    try {
+      if (files != null) {
+        for (File f : files) {
+          Files.deleteIfExists(f.toPath());
+        }
+      }
+      Files.deleteIfExists(path.toPath());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to delete " + path, e);
+    }
+  }
+
+  /**
+   * Iterates the records in key order with a cursor of a read transaction
+   */
+  public class Reader {
+    private Txn<ByteBuffer> txn;
+    private CursorIterator<ByteBuffer> iterator;
+
+    Reader() {
+      txn = env.txnRead();
+      iterator = db.iterate(txn, KeyRange.<ByteBuffer>all());
+    }
+
+    /**
+     * Copy the next records in to the buffer, packed from position 0
+     *
+     * @return number of records copied
+     */
+    public int read(ByteBuffer dst, int maxRecords) {
+      dst.clear();
+      int count = 0;
+      while (count < maxRecords && iterator.hasNext()) {
+        CursorIterator.KeyVal<ByteBuffer> kv = iterator.next();
+        ByteBuffer k = kv.key();
+        k.limit(k.position() + Record.KEY_SIZE);
+        dst.put(k);
+        dst.put(kv.val());
+        count++;
+      }
+      return count;
+    }
+
+    public void close() {
+      iterator.close();
+      txn.close();
+    }
+  }
+}
@@ -1,12 +1,12 @@
 package edu.iu.dsc.tws.apps.terasort.utils;
 
+import edu.iu.dsc.tws.apps.terasort.utils.heap.LoserTree;
 import edu.iu.dsc.tws.comms.mpi.io.KeyedContent;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.hadoop.io.Text;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,14 +25,6 @@ public class MergeSorter {
     List<byte[]> keys;
     List<byte[]> values;
 
-    private static byte[] zero = new byte[Record.KEY_SIZE];
-    private static byte[] largest = new byte[Record.KEY_SIZE];
-
-    static {
-        Arrays.fill(zero, (byte) 0);
-        Arrays.fill(largest, (byte) 255);
-    }
-
     public void addData(int rank, byte[] data) {
         LOG.log(Level.INFO, "Rank: " + rank + " receiving: " + data.length);
         // for now lets get the keys and sort them
@@ -96,13 +88,12 @@ public class MergeSorter {
         } else {
             Record[][] toSort = new Record[recordsList.size()][];
             for (int i = 0; i < recordsList.size(); i++) {
-                // sort the list and add
-                Record[] r = recordsList.get(i);
-//        LOG.info(String.format("Rank: %d star sorting array of size %d", rank, r.length));
-                Arrays.sort(r);
-                toSort[i] = r;
-//        LOG.info(String.format("Rank: %d stop sorting", rank));
+                toSort[i] = recordsList.get(i);
             }
+//        LOG.info(String.format("Rank: %d star sorting %d arrays", rank, toSort.length));
+            // sort the lists in parallel
+            RadixSorter.sort(toSort);
+//        LOG.info(String.format("Rank: %d stop sorting", rank));
 //      LOG.info(String.format("Rank: %d start merging number of arrays: %d", rank, toSort.length));
             Record[] merge = merge(toSort, toSort.length);
             LOG.info("Done merging");
@@ -110,20 +101,7 @@ public class MergeSorter {
         }
     }
 
-    // Every Node will store the data and the list no from which it belongs
-    class HeapNode {
-        Record data;
-        int listNo;
-
-        public HeapNode(Record data, int listNo) {
-            this.data = data;
-            this.listNo = listNo;
-        }
-    }
-
     public int size;
-    public HeapNode[] Heap;
-    public int position;
     Record[] result;
     private int rank;
 
@@ -131,12 +109,9 @@ public class MergeSorter {
         this.rank = rank;
     }
 
-    public Record[] merge(Record[][] A, int k) {
+    public Record[] merge(final Record[][] A, int k) {
         records = new Record[k][];
         this.size = k;
-        Heap = new HeapNode[k + 1]; // size + 1 because index 0 will be empty
-        position = 0;
-        Heap[0] = new HeapNode(new Record(new Text(zero)), -1); // put some junk values at 0th index node
 
         int nk = 0;
         for (int i = 0; i < A.length; i++) {
@@ -144,81 +119,27 @@ public class MergeSorter {
         }
         result = new Record[nk];
         int count = 0;
-        int[] ptrs = new int[k];
         // create index pointer for every list.
-        for (int i = 0; i < ptrs.length; i++) {
-            ptrs[i] = 0;
-        }
-        for (int i = 0; i < k; i++) {
-            if (ptrs[i] < A[i].length) {
-                insert(A[i][ptrs[i]], i); // insert the element into heap
-            } else {
-                insert(new Record(new Text(largest)), i); // if any of this list burns out, insert +infinity
+        final int[] ptrs = new int[k];
+        LoserTree tree = new LoserTree(k, new LoserTree.Inputs() {
+            @Override
+            public boolean isExhausted(int input) {
+                // a burnt out list loses every match
+                return ptrs[input] >= A[input].length;
             }
 
-        }
-        while (count < nk) {
-            HeapNode h = extractMin(); // get the min node from the heap.
-            result[count] = h.data; // store node data into result array
-            ptrs[h.listNo]++; // increase the particular list pointer
-            if (ptrs[h.listNo] < A[h.listNo].length) { // check if list is not burns out
-                insert(A[h.listNo][ptrs[h.listNo]], h.listNo); // insert the next element from the list
-            } else {
-                insert(new Record(new Text(largest)), h.listNo); // if any of this list burns out, insert +infinity
+            @Override
+            public int compare(int a, int b) {
+                return A[a][ptrs[a]].compareTo(A[b][ptrs[b]]);
             }
+        });
+        while (count < nk) {
+            int listNo = tree.winner(); // get the list with the min record
+            result[count] = A[listNo][ptrs[listNo]]; // store the record into result array
+            ptrs[listNo]++; // increase the particular list pointer
+            tree.update(); // replay the matches of this list
             count++;
         }
         return result;
     }
-
-    public void insert(Record data, int listNo) {
-        if (position == 0) { // check if Heap is empty
-            Heap[position + 1] = new HeapNode(data, listNo); // insert the first element in heap
-            position = 2;
-        } else {
-            Heap[position++] = new HeapNode(data, listNo);// insert the element to the end
-            bubbleUp(); // call the bubble up operation
-        }
-    }
-
-    public HeapNode extractMin() {
-        HeapNode min = Heap[1]; // extract the root
-        Heap[1] = Heap[position - 1]; // replace the root with the last element in the heap
-        Heap[position - 1] = null; // set the last Node as NULL
-        position--; // reduce the position pointer
-        sinkDown(1); // sink down the root to its correct position
-        return min;
-    }
-
-    public void sinkDown(int k) {
-        int smallest = k;
-        // check which is smaller child , 2k or 2k+1.
-        if (2 * k < position && Heap[smallest].data.compareTo(Heap[2 * k].data) > 0) {
-            smallest = 2 * k;
-        }
-        if (2 * k + 1 < position && Heap[smallest].data.compareTo(Heap[2 * k + 1].data) > 0) {
-            smallest = 2 * k + 1;
-        }
-        if (smallest != k) { // if any if the child is small, swap
-            swap(k, smallest);
-            sinkDown(smallest); // call recursively
-        }
-    }
-
-    public void swap(int a, int b) {
-        // System.out.println("swappinh" + mH[a] + " and " + mH[b]);
-        HeapNode temp = Heap[a];
-        Heap[a] = Heap[b];
-        Heap[b] = temp;
-    }
-
-    public void bubbleUp() {
-        int pos = position - 1; // last position
-        while (pos > 0 && Heap[pos / 2].data.compareTo(Heap[pos].data) > 0) { // check if its parent is greater.
-            HeapNode y = Heap[pos]; // if yes, then swap
-            Heap[pos] = Heap[pos / 2];
-            Heap[pos / 2] = y;
-            pos = pos / 2; // make pos to its parent for next iteration.
-        }
-    }
 }
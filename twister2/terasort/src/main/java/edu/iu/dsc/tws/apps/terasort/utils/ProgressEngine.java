@@ -0,0 +1,188 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import edu.iu.dsc.tws.comms.api.DataFlowOperation;
+import edu.iu.dsc.tws.comms.core.TWSCommunication;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread progressing a set of operations. The operations do not tell whether a
+ * progress call did any work, so the senders and receivers call wakeup when there is work.
+ * Without wakeups the thread backs off from spinning to yielding and then to parking for
+ * up to a millisecond, so an idle worker does not burn a core. The thread stops once all
+ * the registered operations are finished and is started again by the next registration.
+ * The thread also progresses the channel of the operations, so the other threads wait on
+ * latches counted down by the receivers instead of progressing the channel themselves.
+ */
+public class ProgressEngine implements Runnable {
+  private static final Logger LOG = Logger.getLogger(ProgressEngine.class.getName());
+  // idle passes spent spinning, then yielding, before parking
+  private static final int SPIN_PASSES = 64;
+  private static final int YIELD_PASSES = 1024;
+  private static final long MIN_PARK_NANOS = 10000;
+  private static final long MAX_PARK_NANOS = 1000000;
+
+  private List<DataFlowOperation> operations = new CopyOnWriteArrayList<>();
+  private volatile boolean work = false;
+  private volatile Thread thread;
+  private boolean running = false;
+  private volatile TWSCommunication channel;
+
+  /**
+   * Progress the channel along with the operations
+   */
+  public void setChannel(TWSCommunication channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Start progressing the operation
+   */
+  public synchronized void register(DataFlowOperation operation) {
+    operations.add(operation);
+    if (!running) {
+      running = true;
+      thread = new Thread(this, "progress");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    wakeup();
+  }
+
+  /**
+   * The operation has completed on this worker and need not be progressed any more
+   */
+  public synchronized void finish(DataFlowOperation operation) {
+    operations.remove(operation);
+    wakeup();
+  }
+
+  /**
+   * Tell the engine there is work, i.e. a message was sent or received
+   */
+  public void wakeup() {
+    work = true;
+    Thread t = thread;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  /**
+   * Send a message, waiting for the engine to make room if the operation is full
+   */
+  public void send(DataFlowOperation operation, int source, Object message, int flags,
+                   int target) {
+    int attempts = 0;
+    while (!operation.send(source, message, flags, target)) {
+      wakeup();
+      backoff(attempts++);
+    }
+    wakeup();
+  }
+
+  /**
+   * Send a message to all the targets of the operation
+   */
+  public void send(DataFlowOperation operation, int source, Object message, int flags) {
+    int attempts = 0;
+    while (!operation.send(source, message, flags)) {
+      wakeup();
+      backoff(attempts++);
+    }
+    wakeup();
+  }
+
+  /**
+   * Wait for the latch to be counted down by a receiver while the engine progresses
+   */
+  public void await(CountDownLatch latch) {
+    wakeup();
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the operations", e);
+    }
+  }
+
+  /**
+   * Keep progressing the registered operations for a while, so the last messages forwarded
+   * by this worker leave before the operations are finished
+   */
+  public void linger(long millis) {
+    wakeup();
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while progressing the last messages", e);
+    }
+  }
+
+  @Override
+  public void run() {
+    int idle = 0;
+    while (true) {
+      if (operations.isEmpty()) {
+        synchronized (this) {
+          if (operations.isEmpty()) {
+            running = false;
+            thread = null;
+            return;
+          }
+        }
+      }
+      if (work) {
+        work = false;
+        idle = 0;
+      }
+      TWSCommunication c = channel;
+      if (c != null) {
+        try {
+          c.progress();
+        } catch (Throwable t) {
+          LOG.log(Level.SEVERE, "Something bad happened", t);
+        }
+      }
+      for (DataFlowOperation operation : operations) {
+        try {
+          operation.progress();
+        } catch (Throwable t) {
+          LOG.log(Level.SEVERE, "Something bad happened", t);
+        }
+      }
+      if (!work) {
+        backoff(idle++);
+      }
+    }
+  }
+
+  private static void backoff(int attempts) {
+    if (attempts < SPIN_PASSES) {
+      return;
+    }
+    if (attempts < SPIN_PASSES + YIELD_PASSES) {
+      Thread.yield();
+      return;
+    }
+    int parks = Math.min(attempts - SPIN_PASSES - YIELD_PASSES, 10);
+    LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << parks, MAX_PARK_NANOS));
+  }
+}
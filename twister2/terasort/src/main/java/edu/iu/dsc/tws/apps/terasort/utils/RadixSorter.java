@@ -0,0 +1,217 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Most significant digit radix sort for Record.KEY_SIZE byte keys. Each byte of the key
+ * is a digit, large buckets are sorted in parallel and small buckets with insertion sort.
+ */
+public final class RadixSorter {
+  private static final int RADIX = 256;
+  // buckets smaller than this are sorted with insertion sort
+  private static final int INSERTION_SORT_THRESHOLD = 32;
+  // buckets larger than this are sorted as separate fork join tasks
+  private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+  private RadixSorter() {
+  }
+
+  /**
+   * Sort the index so that the keys at index[i] * Record.KEY_SIZE are in ascending order
+   * @param keys packed keys
+   * @param index indexes of the keys to sort
+   * @param size number of indexes
+   */
+  public static void sort(byte[] keys, int[] index, int size) {
+    int[] tmp = new int[size];
+    if (size >= PARALLEL_THRESHOLD) {
+      ForkJoinPool.commonPool().invoke(new BucketSort(keys, index, tmp, 0, size, 0));
+    } else {
+      sort(keys, index, tmp, 0, size, 0, new int[Record.KEY_SIZE][RADIX + 1]);
+    }
+  }
+
+  /**
+   * Sort the records by key
+   */
+  public static void sort(Record[] records) {
+    int size = records.length;
+    byte[] keys = new byte[size * Record.KEY_SIZE];
+    int[] index = new int[size];
+    for (int i = 0; i < size; i++) {
+      System.arraycopy(records[i].getKey().getBytes(), 0, keys, i * Record.KEY_SIZE, Record.KEY_SIZE);
+      index[i] = i;
+    }
+    sort(keys, index, size);
+    Record[] sorted = new Record[size];
+    for (int i = 0; i < size; i++) {
+      sorted[i] = records[index[i]];
+    }
+    System.arraycopy(sorted, 0, records, 0, size);
+  }
+
+  /**
+   * Sort a set of independent buffers in parallel
+   */
+  public static void sort(RecordBuffer[] buffers) {
+    ForkJoinPool.commonPool().invoke(new ChunkSort(buffers, null, 0, buffers.length));
+  }
+
+  /**
+   * Sort a set of independent record arrays in parallel
+   */
+  public static void sort(Record[][] chunks) {
+    ForkJoinPool.commonPool().invoke(new ChunkSort(null, chunks, 0, chunks.length));
+  }
+
+  private static void sort(byte[] keys, int[] index, int[] tmp, int low, int high, int depth,
+                           int[][] counts) {
+    if (high - low < INSERTION_SORT_THRESHOLD) {
+      insertionSort(keys, index, low, high, depth);
+      return;
+    }
+    int[] c = counts[depth];
+    distribute(keys, index, tmp, low, high, depth, c);
+    if (depth + 1 == Record.KEY_SIZE) {
+      return;
+    }
+    int start = low;
+    for (int b = 0; b < RADIX; b++) {
+      int end = c[b];
+      if (end - start > 1) {
+        sort(keys, index, tmp, start, end, depth + 1, counts);
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Place the indexes in to buckets by the byte at depth. After this c[b] is the end
+   * of bucket b.
+   */
+  private static void distribute(byte[] keys, int[] index, int[] tmp, int low, int high,
+                                 int depth, int[] c) {
+    Arrays.fill(c, 0);
+    c[0] = low;
+    for (int i = low; i < high; i++) {
+      c[(keys[index[i] * Record.KEY_SIZE + depth] & 0xff) + 1]++;
+    }
+    for (int b = 1; b <= RADIX; b++) {
+      c[b] += c[b - 1];
+    }
+    for (int i = low; i < high; i++) {
+      int s = index[i];
+      tmp[c[keys[s * Record.KEY_SIZE + depth] & 0xff]++] = s;
+    }
+    System.arraycopy(tmp, low, index, low, high - low);
+  }
+
+  private static void insertionSort(byte[] keys, int[] index, int low, int high, int depth) {
+    for (int i = low + 1; i < high; i++) {
+      int s = index[i];
+      int j = i - 1;
+      while (j >= low && compare(keys, index[j], s, depth) > 0) {
+        index[j + 1] = index[j];
+        j--;
+      }
+      index[j + 1] = s;
+    }
+  }
+
+  private static int compare(byte[] keys, int a, int b, int depth) {
+    int offsetA = a * Record.KEY_SIZE;
+    int offsetB = b * Record.KEY_SIZE;
+    for (int k = depth; k < Record.KEY_SIZE; k++) {
+      int x = keys[offsetA + k] & 0xff;
+      int y = keys[offsetB + k] & 0xff;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return 0;
+  }
+
+  private static class BucketSort extends RecursiveAction {
+    private byte[] keys;
+    private int[] index;
+    private int[] tmp;
+    private int low;
+    private int high;
+    private int depth;
+
+    BucketSort(byte[] keys, int[] index, int[] tmp, int low, int high, int depth) {
+      this.keys = keys;
+      this.index = index;
+      this.tmp = tmp;
+      this.low = low;
+      this.high = high;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      if (high - low < PARALLEL_THRESHOLD) {
+        sort(keys, index, tmp, low, high, depth, new int[Record.KEY_SIZE][RADIX + 1]);
+        return;
+      }
+      int[] c = new int[RADIX + 1];
+      distribute(keys, index, tmp, low, high, depth, c);
+      if (depth + 1 == Record.KEY_SIZE) {
+        return;
+      }
+      List<BucketSort> tasks = new ArrayList<>();
+      int start = low;
+      for (int b = 0; b < RADIX; b++) {
+        int end = c[b];
+        if (end - start > 1) {
+          tasks.add(new BucketSort(keys, index, tmp, start, end, depth + 1));
+        }
+        start = end;
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  private static class ChunkSort extends RecursiveAction {
+    private RecordBuffer[] buffers;
+    private Record[][] chunks;
+    private int low;
+    private int high;
+
+    ChunkSort(RecordBuffer[] buffers, Record[][] chunks, int low, int high) {
+      this.buffers = buffers;
+      this.chunks = chunks;
+      this.low = low;
+      this.high = high;
+    }
+
+    @Override
+    protected void compute() {
+      if (high - low == 1) {
+        if (buffers != null) {
+          buffers[low].sort();
+        } else {
+          sort(chunks[low]);
+        }
+      } else if (high - low > 1) {
+        int mid = (low + high) >>> 1;
+        invokeAll(new ChunkSort(buffers, chunks, low, mid), new ChunkSort(buffers, chunks, mid, high));
+      }
+    }
+  }
+}
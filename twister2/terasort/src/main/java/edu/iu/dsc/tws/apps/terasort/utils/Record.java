@@ -20,6 +20,8 @@ public class Record implements Comparable<Record> {
 
     private Text key;
     private Text text;
+    // first 8 bytes of the key as an unsigned long, decides almost all comparisons
+    private long prefix;
 
     public Record() {
 
@@ -27,11 +29,13 @@ public class Record implements Comparable<Record> {
 
     public Record(Text key) {
         this.key = key;
+        this.prefix = prefix(key);
     }
 
     public Record(Text key, Text text) {
         this.key = key;
         this.text = text;
+        this.prefix = prefix(key);
     }
 
     public Text getKey() {
@@ -42,8 +46,49 @@ public class Record implements Comparable<Record> {
         return text;
     }
 
+    public long getPrefix() {
+        return prefix;
+    }
+
     @Override
     public int compareTo(Record o) {
-        return this.key.compareTo(o.getKey());
+        if (prefix != o.prefix) {
+            return Long.compareUnsigned(prefix, o.prefix);
+        }
+        return compareSuffix(key, o.key);
+    }
+
+    /**
+     * The first 8 bytes of the key as an unsigned long, padded with zeros if the key is shorter
+     */
+    public static long prefix(Text key) {
+        byte[] bytes = key.getBytes();
+        int length = Math.min(key.getLength(), 8);
+        long p = 0;
+        for (int i = 0; i < 8; i++) {
+            p <<= 8;
+            if (i < length) {
+                p |= bytes[i] & 0xff;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Compare two keys with the same prefix, by the bytes after the prefix and then the length
+     */
+    public static int compareSuffix(Text a, Text b) {
+        byte[] x = a.getBytes();
+        byte[] y = b.getBytes();
+        int lengthA = a.getLength();
+        int lengthB = b.getLength();
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 8; i < length; i++) {
+            int c = (x[i] & 0xff) - (y[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return lengthA - lengthB;
     }
 }
@@ -0,0 +1,186 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed number of records packed in to Record.RECORD_LENGTH byte slots of a direct buffer.
+ * The records are sorted through an int index, so no objects are created per record.
+ */
+public class RecordBuffer {
+  private ByteBuffer data;
+  // view of the data used to copy records out
+  private ByteBuffer view;
+  // sorted order of the slots, null if the slots are already in order
+  private int[] index;
+  // keys copied out of the direct buffer for sorting
+  private byte[] keys;
+  private int capacity;
+  private int size;
+
+  public RecordBuffer(int capacity) {
+    this.data = ByteBuffer.allocateDirect(capacity * Record.RECORD_LENGTH);
+    this.view = data.duplicate();
+    this.capacity = capacity;
+    this.index = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      index[i] = i;
+    }
+  }
+
+  private RecordBuffer(ByteBuffer data, int size, int capacity) {
+    this.data = data;
+    this.view = data.duplicate();
+    this.capacity = capacity;
+    this.size = size;
+  }
+
+  /**
+   * Wrap records which are already in sorted order, i.e. a region of a spilled file
+   * @param sorted the records starting at position 0
+   * @param records number of records
+   * @return the buffer
+   */
+  public static RecordBuffer wrap(ByteBuffer sorted, int records) {
+    return new RecordBuffer(sorted, records, records);
+  }
+
+  /**
+   * A buffer which keeps the records in the order they are added, without an index
+   * @param capacity number of records
+   * @return the buffer
+   */
+  public static RecordBuffer inOrder(int capacity) {
+    return new RecordBuffer(ByteBuffer.allocateDirect(capacity * Record.RECORD_LENGTH), 0,
+        capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public boolean isFull() {
+    return size == capacity;
+  }
+
+  public void add(byte[] key, byte[] value) {
+    add(key, 0, value, 0);
+  }
+
+  /**
+   * Add a record whose key and value are at the given offsets of packed arrays
+   */
+  public void add(byte[] keys, int keyOffset, byte[] values, int valueOffset) {
+    data.position(size * Record.RECORD_LENGTH);
+    data.put(keys, keyOffset, Record.KEY_SIZE);
+    data.put(values, valueOffset, Record.DATA_SIZE);
+    size++;
+  }
+
+  /**
+   * Copy records from the current position of the source
+   * @param src source buffer with packed records
+   * @param records number of records available in the source
+   * @return number of records copied, limited by the free slots
+   */
+  public int add(ByteBuffer src, int records) {
+    int count = Math.min(records, capacity - size);
+    int limit = src.limit();
+    src.limit(src.position() + count * Record.RECORD_LENGTH);
+    data.position(size * Record.RECORD_LENGTH);
+    data.put(src);
+    src.limit(limit);
+    size += count;
+    return count;
+  }
+
+  /**
+   * A view of the records in the order they were added, sharing the data of this buffer
+   */
+  public ByteBuffer records() {
+    ByteBuffer records = data.duplicate();
+    records.clear();
+    records.limit(size * Record.RECORD_LENGTH);
+    return records;
+  }
+
+  /**
+   * Compare the keys of the i th record of this buffer and the j th record of the other.
+   * The first 8 bytes are compared as an unsigned big endian long and the last 2 only on ties.
+   */
+  public int compare(int i, RecordBuffer other, int j) {
+    int offset = slot(i) * Record.RECORD_LENGTH;
+    int otherOffset = other.slot(j) * Record.RECORD_LENGTH;
+    ByteBuffer otherData = other.data;
+    long a = data.getLong(offset);
+    long b = otherData.getLong(otherOffset);
+    if (a != b) {
+      return Long.compareUnsigned(a, b);
+    }
+    return (data.getShort(offset + 8) & 0xffff) - (otherData.getShort(otherOffset + 8) & 0xffff);
+  }
+
+  /**
+   * Write the i th record in sorted order to the output
+   */
+  public void copyTo(int i, ByteBuffer out) {
+    int offset = slot(i) * Record.RECORD_LENGTH;
+    view.clear();
+    view.position(offset);
+    view.limit(offset + Record.RECORD_LENGTH);
+    out.put(view);
+  }
+
+  /**
+   * Copy the key of the i th record in sorted order
+   */
+  public void getKey(int i, byte[] dst, int offset) {
+    view.clear();
+    view.position(slot(i) * Record.RECORD_LENGTH);
+    view.get(dst, offset, Record.KEY_SIZE);
+  }
+
+  /**
+   * Sort the index of the records by key
+   */
+  public void sort() {
+    if (index != null) {
+      if (keys == null) {
+        keys = new byte[capacity * Record.KEY_SIZE];
+      }
+      for (int i = 0; i < size; i++) {
+        view.clear();
+        view.position(i * Record.RECORD_LENGTH);
+        view.get(keys, i * Record.KEY_SIZE, Record.KEY_SIZE);
+      }
+      RadixSorter.sort(keys, index, size);
+    }
+  }
+
+  public void clear() {
+    size = 0;
+    if (index != null) {
+      for (int i = 0; i < capacity; i++) {
+        index[i] = i;
+      }
+    }
+  }
+
+  private int slot(int i) {
+    return index == null ? i : index[i];
+  }
+}
@@ -0,0 +1,164 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block format for compressed saved files. The sorted keys of a block are prefix encoded
+ * against the previous key and the values of the block are deflated together.
+ *
+ * A block is: number of records, length of keys, length of values, keys, values. Each key
+ * is the length of the prefix shared with the previous key followed by the rest of the key.
+ */
+public class SpillCodec {
+  public static final int HEADER_SIZE = 12;
+
+  private Deflater deflater;
+  private Inflater inflater;
+  private byte[] block;
+  private byte[] values;
+  private byte[] previous = new byte[Record.KEY_SIZE];
+  private byte[] key = new byte[Record.KEY_SIZE];
+
+  /**
+   * Encode the sorted records at the start of the source as a block
+   * @param src packed records starting at position 0
+   * @param records number of records
+   * @return the block, ready to be written
+   */
+  public ByteBuffer encode(ByteBuffer src, int records) {
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+    int valuesLength = records * Record.DATA_SIZE;
+    values = ensure(values, valuesLength);
+    // keys never grow, and deflate adds a few bytes for every 16K block it can not compress
+    block = ensure(block, HEADER_SIZE + records * (Record.KEY_SIZE + 1)
+        + valuesLength + valuesLength / 1000 + 64);
+
+    ByteBuffer in = src.duplicate();
+    in.clear();
+    int pos = HEADER_SIZE;
+    for (int i = 0; i < records; i++) {
+      in.position(i * Record.RECORD_LENGTH);
+      in.get(key, 0, Record.KEY_SIZE);
+      in.get(values, i * Record.DATA_SIZE, Record.DATA_SIZE);
+      int shared = 0;
+      if (i > 0) {
+        while (shared < Record.KEY_SIZE && key[shared] == previous[shared]) {
+          shared++;
+        }
+      }
+      block[pos++] = (byte) shared;
+      System.arraycopy(key, shared, block, pos, Record.KEY_SIZE - shared);
+      pos += Record.KEY_SIZE - shared;
+      byte[] t = previous;
+      previous = key;
+      key = t;
+    }
+    int keysLength = pos - HEADER_SIZE;
+
+    deflater.reset();
+    deflater.setInput(values, 0, valuesLength);
+    deflater.finish();
+    while (!deflater.finished()) {
+      pos += deflater.deflate(block, pos, block.length - pos);
+    }
+    int compressedLength = pos - HEADER_SIZE - keysLength;
+
+    ByteBuffer out = ByteBuffer.wrap(block, 0, pos);
+    out.putInt(0, records);
+    out.putInt(4, keysLength);
+    out.putInt(8, compressedLength);
+    return out;
+  }
+
+  /**
+   * @param header the first HEADER_SIZE bytes of a block
+   * @return number of bytes in the block after the header
+   */
+  public static int payloadLength(ByteBuffer header) {
+    return header.getInt(4) + header.getInt(8);
+  }
+
+  /**
+   * @param header the first HEADER_SIZE bytes of a block
+   * @return number of records in the block
+   */
+  public static int records(ByteBuffer header) {
+    return header.getInt(0);
+  }
+
+  /**
+   * Decode a block in to packed records
+   * @param header the header of the block
+   * @param payload the rest of the block
+   * @param dst the records are written from position 0
+   * @return number of records
+   */
+  public int decode(ByteBuffer header, byte[] payload, ByteBuffer dst) {
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    int records = header.getInt(0);
+    int keysLength = header.getInt(4);
+    int compressedLength = header.getInt(8);
+    int valuesLength = records * Record.DATA_SIZE;
+    values = ensure(values, valuesLength);
+
+    inflater.reset();
+    inflater.setInput(payload, keysLength, compressedLength);
+    try {
+      int read = 0;
+      while (read < valuesLength) {
+        int n = inflater.inflate(values, read, valuesLength - read);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new RuntimeException("Truncated block of " + records + " records");
+        }
+        read += n;
+      }
+    } catch (DataFormatException e) {
+      throw new RuntimeException("Corrupted block", e);
+    }
+
+    int pos = 0;
+    for (int i = 0; i < records; i++) {
+      int shared = payload[pos++];
+      System.arraycopy(payload, pos, previous, shared, Record.KEY_SIZE - shared);
+      pos += Record.KEY_SIZE - shared;
+      dst.position(i * Record.RECORD_LENGTH);
+      dst.put(previous, 0, Record.KEY_SIZE);
+      dst.put(values, i * Record.DATA_SIZE, Record.DATA_SIZE);
+    }
+    return records;
+  }
+
+  public void close() {
+    if (deflater != null) {
+      deflater.end();
+    }
+    if (inflater != null) {
+      inflater.end();
+    }
+  }
+
+  private static byte[] ensure(byte[] b, int size) {
+    if (b == null || b.length < size) {
+      return new byte[size];
+    }
+    return b;
+  }
+}
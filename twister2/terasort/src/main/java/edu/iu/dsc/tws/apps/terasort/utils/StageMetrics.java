@@ -0,0 +1,148 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Time, records and bytes of each stage of terasort on one rank. A stage may run in several
+ * threads and many times, i.e. once per message or spill. The wall time of a stage is from the
+ * first start to the last end recorded for it, and the busy time is the sum of the recorded
+ * times, which is larger than the wall time if the stage runs in parallel.
+ */
+public class StageMetrics {
+  private static final Logger LOG = Logger.getLogger(StageMetrics.class.getName());
+
+  public enum Stage {
+    SAMPLE_GATHER,
+    KEY_SELECTION,
+    KEY_BROADCAST,
+    PARTITION_SEND,
+    PARTITION_RECEIVE,
+    SORT,
+    SPILL,
+    MERGE,
+    WRITE
+  }
+
+  private static final String HEADER = "rank,stage,events,wall_ms,busy_ms,records,bytes,"
+      + "records_per_sec,mb_per_sec";
+
+  private int rank;
+  private long[] first = new long[Stage.values().length];
+  private long[] last = new long[Stage.values().length];
+  private long[] busy = new long[Stage.values().length];
+  private long[] events = new long[Stage.values().length];
+  private long[] records = new long[Stage.values().length];
+  private long[] bytes = new long[Stage.values().length];
+
+  public StageMetrics(int rank) {
+    this.rank = rank;
+  }
+
+  /**
+   * Record a run of the stage from the given System.nanoTime until now
+   */
+  public void record(Stage stage, long startNanos, long recordCount, long byteCount) {
+    long now = System.nanoTime();
+    record(stage, startNanos, now, now - startNanos, recordCount, byteCount);
+  }
+
+  /**
+   * Record a run of the stage, which was busy for part of the time between start and end
+   */
+  public synchronized void record(Stage stage, long startNanos, long endNanos, long busyNanos,
+                                  long recordCount, long byteCount) {
+    int s = stage.ordinal();
+    if (events[s] == 0 || startNanos < first[s]) {
+      first[s] = startNanos;
+    }
+    if (events[s] == 0 || endNanos > last[s]) {
+      last[s] = endNanos;
+    }
+    busy[s] += busyNanos;
+    events[s]++;
+    records[s] += recordCount;
+    bytes[s] += byteCount;
+  }
+
+  /**
+   * @return the stages which ran as comma separated values, with a header line
+   */
+  public synchronized String toCsv() {
+    StringBuilder sb = new StringBuilder(HEADER).append('\n');
+    for (Stage stage : Stage.values()) {
+      int s = stage.ordinal();
+      if (events[s] == 0) {
+        continue;
+      }
+      sb.append(String.format(Locale.ROOT, "%d,%s,%d,%.3f,%.3f,%d,%d,%.1f,%.3f%n", rank,
+          stage.name().toLowerCase(Locale.ROOT), events[s], millis(wall(s)), millis(busy[s]), records[s],
+          bytes[s], rate(records[s], wall(s)), rate(bytes[s], wall(s)) / (1 << 20)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the stages which ran as a json object
+   */
+  public synchronized String toJson() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"rank\":").append(rank).append(",\"stages\":[");
+    boolean firstStage = true;
+    for (Stage stage : Stage.values()) {
+      int s = stage.ordinal();
+      if (events[s] == 0) {
+        continue;
+      }
+      if (!firstStage) {
+        sb.append(',');
+      }
+      firstStage = false;
+      sb.append(String.format(Locale.ROOT, "{\"stage\":\"%s\",\"events\":%d,\"wall_ms\":%.3f,"
+              + "\"busy_ms\":%.3f,\"records\":%d,\"bytes\":%d,\"records_per_sec\":%.1f,"
+              + "\"mb_per_sec\":%.3f}", stage.name().toLowerCase(Locale.ROOT), events[s], millis(wall(s)),
+          millis(busy[s]), records[s], bytes[s], rate(records[s], wall(s)),
+          rate(bytes[s], wall(s)) / (1 << 20)));
+    }
+    return sb.append("]}\n").toString();
+  }
+
+  /**
+   * Write the metrics to the file, as json if the name ends with .json and csv otherwise
+   */
+  public void write(String fileName) {
+    String content = fileName.endsWith(".json") ? toJson() : toCsv();
+    try (Writer writer = new FileWriter(fileName)) {
+      writer.write(content);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write the metrics to " + fileName, e);
+    }
+  }
+
+  private long wall(int s) {
+    return last[s] - first[s];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static double rate(long count, long nanos) {
+    return nanos > 0 ? count * 1e9 / nanos : 0;
+  }
+}
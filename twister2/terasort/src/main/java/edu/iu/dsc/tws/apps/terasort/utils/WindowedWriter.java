@@ -0,0 +1,161 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a file of records through two bounded direct buffers instead of mapping the whole
+ * file. The file is allocated to its final size first. While the records of one window are
+ * written at their position by the flusher, the other window is filled, so the writes overlap
+ * with producing the records and the dirty pages are written out as we go instead of at
+ * the end.
+ */
+public class WindowedWriter {
+  private static final Logger LOG = Logger.getLogger(WindowedWriter.class.getName());
+  private FileChannel channel;
+  private ExecutorService flusher;
+  private ByteBuffer current;
+  private ByteBuffer other;
+  // the write of the other window, if any
+  private Future<Integer> pending;
+  // position in the file of the current window
+  private long position = 0;
+  // time spent writing the windows
+  private long writeNanos = 0;
+
+  /**
+   * @param fileName the file to write
+   * @param records number of records which will be written
+   * @param windowRecords number of records in a window
+   * @param flusher runs the writes of the windows
+   */
+  public WindowedWriter(String fileName, long records, int windowRecords,
+                        ExecutorService flusher) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+    file.setLength(records * Record.RECORD_LENGTH);
+    this.channel = file.getChannel();
+    this.flusher = flusher;
+    int size = (int) Math.max(1, Math.min(windowRecords, records)) * Record.RECORD_LENGTH;
+    this.current = ByteBuffer.allocateDirect(size);
+    this.other = ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * The window to put the next record in to, it has room for at least one record
+   */
+  public ByteBuffer buffer() throws IOException {
+    if (!current.hasRemaining()) {
+      flush();
+    }
+    return current;
+  }
+
+  public void put(Record record) throws IOException {
+    ByteBuffer b = buffer();
+    b.put(record.getKey().getBytes(), 0, Record.KEY_SIZE);
+    b.put(record.getText().getBytes(), 0, Record.DATA_SIZE);
+  }
+
+  /**
+   * Start writing the current window and continue with the other one once its write is done
+   */
+  private void flush() throws IOException {
+    await();
+    final ByteBuffer window = current;
+    final long start = position;
+    window.flip();
+    position += window.remaining();
+    pending = flusher.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        long time = System.nanoTime();
+        long at = start;
+        while (window.hasRemaining()) {
+          at += channel.write(window, at);
+        }
+        writeNanos += System.nanoTime() - time;
+        return (int) (at - start);
+      }
+    });
+    current = other;
+    current.clear();
+    other = window;
+  }
+
+  private void await() throws IOException {
+    if (pending == null) {
+      return;
+    }
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while writing", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to write", e.getCause());
+    } finally {
+      pending = null;
+    }
+  }
+
+  /**
+   * @return time spent writing, valid after close
+   */
+  public long getWriteNanos() {
+    return writeNanos;
+  }
+
+  /**
+   * Write the rest of the records and close the file
+   */
+  public void close() throws IOException {
+    try {
+      if (current.position() > 0) {
+        flush();
+      }
+      await();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Close the file after a failure, keeping only the given number of records put before it
+   * instead of leaving the rest of the allocated file zero filled
+   */
+  public void abort(long records) {
+    try {
+      if (current.position() > 0) {
+        flush();
+      }
+      await();
+      channel.truncate(records * Record.RECORD_LENGTH);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Failed to truncate the file to " + records + " records", e);
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "Failed to close the file", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//  http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+package edu.iu.dsc.tws.apps.terasort.utils.heap;
+
+/**
+ * Tournament tree for k way merging. The inner nodes keep the loser of the match played
+ * there and the overall winner is kept at the root, so replacing the winner replays only
+ * the log2(k) matches on the path from its leaf. Exhausted inputs lose every match, which
+ * removes the need for sentinel values.
+ */
+public class LoserTree {
+  /**
+   * The inputs being merged, identified by their index
+   */
+  public interface Inputs {
+    /**
+     * @return true if the input has no more values
+     */
+    boolean isExhausted(int input);
+
+    /**
+     * Compare the current values of two inputs which are not exhausted
+     */
+    int compare(int a, int b);
+  }
+
+  private int k;
+  // tree[0] is the winner, tree[1..k-1] are the losers of the inner nodes
+  private int[] tree;
+  private Inputs inputs;
+
+  public LoserTree(int k, Inputs inputs) {
+    this.k = k;
+    this.inputs = inputs;
+    this.tree = new int[Math.max(k, 1)];
+    if (k == 0) {
+      tree[0] = -1;
+      return;
+    }
+    // leaf of input i is at k + i and the children of node n are 2n and 2n + 1
+    int[] winners = new int[2 * k];
+    for (int i = 0; i < k; i++) {
+      winners[k + i] = i;
+    }
+    for (int n = k - 1; n > 0; n--) {
+      int a = winners[2 * n];
+      int b = winners[2 * n + 1];
+      if (beats(a, b)) {
+        winners[n] = a;
+        tree[n] = b;
+      } else {
+        winners[n] = b;
+        tree[n] = a;
+      }
+    }
+    tree[0] = k == 1 ? 0 : winners[1];
+  }
+
+  /**
+   * @return the input with the smallest current value
+   */
+  public int winner() {
+    return tree[0];
+  }
+
+  /**
+   * @return true if all the inputs are exhausted
+   */
+  public boolean isEmpty() {
+    return k == 0 || inputs.isExhausted(tree[0]);
+  }
+
+  /**
+   * Replay the matches of the winner, after it has moved to its next value
+   */
+  public void update() {
+    int winner = tree[0];
+    for (int n = (winner + k) >>> 1; n > 0; n >>>= 1) {
+      int loser = tree[n];
+      if (beats(loser, winner)) {
+        tree[n] = winner;
+        winner = loser;
+      }
+    }
+    tree[0] = winner;
+  }
+
+  private boolean beats(int a, int b) {
+    if (inputs.isExhausted(a)) {
+      return false;
+    }
+    if (inputs.isExhausted(b)) {
+      return true;
+    }
+    int c = inputs.compare(a, b);
+    return c < 0 || (c == 0 && a < b);
+  }
+}